@@ -0,0 +1,159 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.flowpowered.math.vector.Vector3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.effect.particle.ParticleEffect;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the particle spawner's steady state ticks through the plugin's own
+ * {@link TrailSpawner}, with the density, budget, network and level of
+ * detail handling as configured by default. A sender that only counts the
+ * particles it is handed stands in for the players. Run with
+ * {@code gradle jmh}, the GC profiler's {@code gc.alloc.rate.norm} is
+ * expected to stay at zero bytes per tick.
+ *
+ * <p>The trail's effect is a stub holding a single particle, the variants of
+ * larger effects are built through Sponge's registry.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpawnerTickBenchmark {
+
+    private static final String TRAIL_ID = "happytrails:benchmark";
+    // Players are spread over a square of this many blocks on each side
+    private static final int AREA = 512;
+
+    @Param({"100", "1000"})
+    public int emitters;
+
+    private TrailSpawner spawner;
+    private long sentParticles;
+
+    @Setup
+    public void setUp() {
+        final Trail trail = registerTrail();
+        final int handle = TrailRegistry.getInstance().getHandle(trail);
+        final EmitterTable table = new EmitterTable();
+        final PhaseBalancer balancer = new PhaseBalancer(table);
+        final SpatialIndex index = new SpatialIndex();
+        final ViewerResolver viewers = new ViewerResolver(index, new VisibilityFilter(Paths.get("visibility.conf"), table));
+        final TrailConfig config = new TrailConfig(Collections.singletonList(trail));
+        // Nobody moves during the benchmark
+        config.movement.idleTimeoutSeconds = 0;
+        this.spawner = new TrailSpawner(table, balancer, index, viewers, new DensityController(), new ParticleBudget(),
+            new NetworkAccounting(), new TrailStatistics(), new AllocationProbe(), this::send, config);
+        final TrailScheduler scheduler = this.spawner.getScheduler();
+        final UUID worldId = UUID.randomUUID();
+        final Random random = new Random(0);
+        for (int i = 0; i < this.emitters; i++) {
+            final PlayerWrapper session = new PlayerWrapper(stub(Player.class, UUID.randomUUID()));
+            index.update(session, worldId, new Vector3d(random.nextDouble() * AREA, 64, random.nextDouble() * AREA));
+            index.setEmitter(session, true);
+            final int slot = session.emitterSlot = table.allocate(session, handle);
+            table.setLastPosition(slot, session.x, session.y, session.z, 0);
+            table.cells[slot] = session.gridCell;
+            scheduler.schedule(slot, balancer.assign(slot, trail.period + 1, scheduler.getTick()));
+        }
+    }
+
+    private static Trail registerTrail() {
+        final TrailRegistry registry = TrailRegistry.getInstance();
+        final Optional<Trail> registered = registry.getById(TRAIL_ID);
+        if (registered.isPresent()) {
+            return registered.get();
+        }
+        final Trail trail = new Trail(TRAIL_ID, "Benchmark", Constants.DEFAULT_PERIOD, Constants.DEFAULT_RADIUS,
+            stub(ParticleEffect.class, null));
+        registry.registerAdditionalCatalog(trail);
+        return trail;
+    }
+
+    private boolean send(PlayerWrapper viewer, ParticleEffect effect, Vector3d position) {
+        this.sentParticles++;
+        return true;
+    }
+
+    @Benchmark
+    public long tick() {
+        this.spawner.tick();
+        return this.sentParticles;
+    }
+
+    @TearDown
+    public void checkSent() {
+        if (this.sentParticles == 0) {
+            throw new IllegalStateException("The spawner sent no particles, nothing was measured");
+        }
+    }
+
+    /**
+     * Stubs an interface with only its unique id, options and identity. A
+     * stubbed particle effect has no options, so it holds one particle.
+     */
+    private static <T> T stub(Class<T> type, UUID uniqueId) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUniqueId":
+                    return uniqueId;
+                case "getOption":
+                    return Optional.empty();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+}
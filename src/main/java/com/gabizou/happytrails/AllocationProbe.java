@@ -0,0 +1,170 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated on the server thread by the plugin side of
+ * the particle spawner, excluding the sections handed to Sponge to send
+ * particles. A steady state tick is expected to allocate nothing, which
+ * {@code /trail stats} reports when {@code debug.measureAllocations} is on.
+ *
+ * <p>Relies on the HotSpot {@code com.sun.management.ThreadMXBean}, the
+ * bytes the probe itself allocates per read are calibrated and subtracted.
+ * Allocation counting is JVM wide, so it is only switched on while
+ * measuring and handed back as it was found when measuring stops.</p>
+ */
+final class AllocationProbe {
+
+    @Nullable private final com.sun.management.ThreadMXBean threads;
+    private boolean enabled;
+    private boolean wasEnabled;
+    private long readOverhead;
+
+    private long threadId;
+    private long tickStart;
+    private long excluded;
+    private int reads;
+    private int excludedSections;
+
+    private long lastTickBytes;
+    private long maxTickBytes;
+    private long allocatingTicks;
+    private long sampledTicks;
+
+    AllocationProbe() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            this.threads = (com.sun.management.ThreadMXBean) bean;
+        } else {
+            this.threads = null;
+        }
+    }
+
+    private static long calibrate(com.sun.management.ThreadMXBean threads) {
+        final long id = Thread.currentThread().getId();
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 32; i++) {
+            final long first = threads.getThreadAllocatedBytes(id);
+            final long second = threads.getThreadAllocatedBytes(id);
+            overhead = Math.min(overhead, second - first);
+        }
+        return Math.max(0, overhead);
+    }
+
+    /**
+     * Switches allocation counting on and calibrates the first time it is
+     * called, returns whether measuring is supported at all.
+     */
+    boolean enable() {
+        final com.sun.management.ThreadMXBean threads = this.threads;
+        if (threads == null) {
+            return false;
+        }
+        if (!this.enabled) {
+            this.wasEnabled = threads.isThreadAllocatedMemoryEnabled();
+            threads.setThreadAllocatedMemoryEnabled(true);
+            this.readOverhead = calibrate(threads);
+            this.enabled = true;
+        }
+        return true;
+    }
+
+    /**
+     * Puts allocation counting back the way {@link #enable()} found it.
+     */
+    void disable() {
+        if (this.enabled) {
+            this.threads.setThreadAllocatedMemoryEnabled(this.wasEnabled);
+            this.enabled = false;
+        }
+    }
+
+    boolean isEnabled() {
+        return this.enabled;
+    }
+
+    private long read() {
+        this.reads++;
+        return this.threads.getThreadAllocatedBytes(this.threadId);
+    }
+
+    void startTick() {
+        this.threadId = Thread.currentThread().getId();
+        this.reads = 0;
+        this.excluded = 0;
+        this.excludedSections = 0;
+        this.tickStart = read();
+    }
+
+    long startExcluded() {
+        return read();
+    }
+
+    void endExcluded(long start) {
+        this.excluded += read() - start;
+        this.excludedSections++;
+    }
+
+    void endTick() {
+        final long total = read() - this.tickStart;
+        // Every interval between two reads contains the allocation of one read
+        final long overhead = this.readOverhead * (this.reads - 1 - this.excludedSections);
+        final long bytes = Math.max(0, total - this.excluded - overhead);
+        this.lastTickBytes = bytes;
+        this.maxTickBytes = Math.max(this.maxTickBytes, bytes);
+        if (bytes > 0) {
+            this.allocatingTicks++;
+        }
+        this.sampledTicks++;
+    }
+
+    long getLastTickBytes() {
+        return this.lastTickBytes;
+    }
+
+    long getMaxTickBytes() {
+        return this.maxTickBytes;
+    }
+
+    long getAllocatingTicks() {
+        return this.allocatingTicks;
+    }
+
+    long getSampledTicks() {
+        return this.sampledTicks;
+    }
+
+    void reset() {
+        this.lastTickBytes = 0;
+        this.maxTickBytes = 0;
+        this.allocatingTicks = 0;
+        this.sampledTicks = 0;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from packed cell keys to
+ * {@link SpatialIndex.Cell cells}. Keys stay primitive so lookups from the
+ * particle spawner never box, and removal uses backward shift deletion so
+ * no tombstones build up as players wander around.
+ */
+final class CellMap {
+
+    private static final float LOAD_FACTOR = 0.5F;
+
+    private long[] keys;
+    private SpatialIndex.Cell[] values;
+    private int mask;
+    private int size;
+
+    CellMap() {
+        this(16);
+    }
+
+    CellMap(int capacity) {
+        final int tableSize = Integer.highestOneBit(Math.max(4, capacity) - 1) << 1;
+        this.keys = new long[tableSize];
+        this.values = new SpatialIndex.Cell[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    @Nullable
+    SpatialIndex.Cell get(long key) {
+        int index = slot(key, this.mask);
+        SpatialIndex.Cell value;
+        while ((value = this.values[index]) != null) {
+            if (this.keys[index] == key) {
+                return value;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return null;
+    }
+
+    void put(long key, SpatialIndex.Cell cell) {
+        int index = slot(key, this.mask);
+        while (this.values[index] != null) {
+            if (this.keys[index] == key) {
+                this.values[index] = cell;
+                return;
+            }
+            index = (index + 1) & this.mask;
+        }
+        this.keys[index] = key;
+        this.values[index] = cell;
+        if (++this.size > this.keys.length * LOAD_FACTOR) {
+            resize(this.keys.length << 1);
+        }
+    }
+
+    void remove(long key) {
+        int index = slot(key, this.mask);
+        while (this.values[index] != null) {
+            if (this.keys[index] == key) {
+                shiftBack(index);
+                this.size--;
+                return;
+            }
+            index = (index + 1) & this.mask;
+        }
+    }
+
+    private void shiftBack(int hole) {
+        int index = (hole + 1) & this.mask;
+        while (this.values[index] != null) {
+            final int home = slot(this.keys[index], this.mask);
+            // Move the entry into the hole if the hole lies between its home slot and its current slot
+            if (((index - home) & this.mask) >= ((index - hole) & this.mask)) {
+                this.keys[hole] = this.keys[index];
+                this.values[hole] = this.values[index];
+                hole = index;
+            }
+            index = (index + 1) & this.mask;
+        }
+        this.values[hole] = null;
+    }
+
+    private void resize(int tableSize) {
+        final long[] oldKeys = this.keys;
+        final SpatialIndex.Cell[] oldValues = this.values;
+        this.keys = new long[tableSize];
+        this.values = new SpatialIndex.Cell[tableSize];
+        this.mask = tableSize - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final SpatialIndex.Cell value = oldValues[i];
+            if (value != null) {
+                int index = slot(oldKeys[i], this.mask);
+                while (this.values[index] != null) {
+                    index = (index + 1) & this.mask;
+                }
+                this.keys[index] = oldKeys[i];
+                this.values[index] = value;
+            }
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+}
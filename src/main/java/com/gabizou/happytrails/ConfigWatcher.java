@@ -0,0 +1,134 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import org.spongepowered.api.scheduler.Task;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the config file and the trail catalog directory for edits and
+ * triggers a reload once they have been quiet for the debounce interval, so
+ * an editor saving several times in a row only causes a single reload.
+ * Polling happens on an async task.
+ */
+final class ConfigWatcher {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final Path file;
+    private final Path directory;
+    private final Runnable onChange;
+    @Nullable private WatchService service;
+    @Nullable private Task task;
+    private volatile long debounceNanos;
+    private volatile long lastChangeNanos;
+    private volatile boolean pending;
+
+    ConfigWatcher(Path file, Path directory, Runnable onChange) {
+        this.file = file.toAbsolutePath();
+        this.directory = directory.toAbsolutePath();
+        this.onChange = onChange;
+    }
+
+    boolean isRunning() {
+        return this.task != null;
+    }
+
+    void start(Object plugin, long debounceMillis) throws IOException {
+        stop();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        final WatchService service = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        // A directory created later is picked up through the config directory
+        if (Files.isDirectory(this.directory)) {
+            watchDirectory(service);
+        }
+        this.service = service;
+        this.task = Task.builder()
+            .async()
+            .name("HappyTrails Config Watcher")
+            .interval(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+            .execute(() -> poll(service))
+            .submit(plugin);
+    }
+
+    private void watchDirectory(WatchService service) throws IOException {
+        this.directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    private void poll(WatchService service) {
+        WatchKey key;
+        while ((key = service.poll()) != null) {
+            final boolean catalog = this.directory.equals(key.watchable());
+            for (WatchEvent<?> event : key.pollEvents()) {
+                final boolean directoryCreated = !catalog && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && this.directory.getFileName().equals(event.context());
+                if (directoryCreated && Files.isDirectory(this.directory)) {
+                    try {
+                        watchDirectory(service);
+                    } catch (IOException e) {
+                        HappyTrails.getInstance().logger.warn("Could not watch the trail directory for changes", e);
+                    }
+                }
+                if (catalog || directoryCreated || event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || this.file.getFileName().equals(event.context())) {
+                    this.pending = true;
+                    this.lastChangeNanos = System.nanoTime();
+                }
+            }
+            key.reset();
+        }
+        if (this.pending && System.nanoTime() - this.lastChangeNanos >= this.debounceNanos) {
+            this.pending = false;
+            this.onChange.run();
+        }
+    }
+
+    void stop() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+        if (this.service != null) {
+            try {
+                this.service.close();
+            } catch (IOException e) {
+                HappyTrails.getInstance().logger.warn("Could not close the config watcher", e);
+            }
+            this.service = null;
+        }
+        this.pending = false;
+    }
+}
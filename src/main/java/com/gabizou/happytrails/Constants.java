@@ -49,6 +49,13 @@ public class Constants {
     public static final DataQuery PERIOD = DataQuery.of("period");
     public static final DataQuery RADIUS = DataQuery.of("radius");
     public static final DataQuery PARTICLE_EFFECT = DataQuery.of("particle_effect");
+    public static final DataQuery PRIORITY = DataQuery.of("priority");
+    public static final DataQuery SPACING = DataQuery.of("spacing");
+    public static final DataQuery TRIGGER = DataQuery.of("trigger");
+    public static final DataQuery LOD = DataQuery.of("lod");
+    public static final DataQuery LOD_DISTANCE = DataQuery.of("distance");
+    public static final DataQuery LOD_MULTIPLIER = DataQuery.of("multiplier");
+    public static final DataQuery TRAIL_REF = DataQuery.of("trail_ref");
 
     public static final Vector3d DEFAULT_VELOCITY = new Vector3d(0.5, 1, 0.4);
 
@@ -61,7 +68,7 @@ public class Constants {
 
         public static final class Manipulator {
 
-            public static final int TRAIL_DATA_VERSION = 1;
+            public static final int TRAIL_DATA_VERSION = 2;
         }
 
     }
@@ -0,0 +1,136 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.world.storage.WorldProperties;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Limits trails in crowded areas. The emitter count of the emitter's
+ * {@link SpatialIndex} cell is compared against the configured threshold and
+ * the resulting factor scales the emission down, configured regions may
+ * override the threshold or disable trails altogether.
+ *
+ * <p>Regions are configured by world name and resolved to world ids lazily,
+ * the resolution is cached until the config is reloaded. Only used from the
+ * main thread.</p>
+ */
+final class DensityController {
+
+    private static final TrailConfig.Region[] NO_REGIONS = new TrailConfig.Region[0];
+
+    private final Map<UUID, TrailConfig.Region[]> regionsByWorld = new HashMap<>();
+
+    /**
+     * Gets the factor, between 0 and 1, an emission at the position within
+     * the cell should be scaled by. A factor of 0 means trails are disabled
+     * at the position.
+     */
+    double getFactor(@Nullable SpatialIndex.Cell cell, double x, double y, double z, TrailConfig.Density config) {
+        if (!config.enabled || cell == null) {
+            return 1;
+        }
+        int threshold = config.maxEmittersPerCell;
+        final TrailConfig.Region region = findRegion(cell.world, x, y, z, config);
+        if (region != null) {
+            if (!region.trailsEnabled) {
+                return 0;
+            }
+            if (region.maxEmittersPerCell > 0) {
+                threshold = region.maxEmittersPerCell;
+            }
+        }
+        if (threshold <= 0 || cell.emitters <= threshold) {
+            return 1;
+        }
+        return (double) threshold / cell.emitters;
+    }
+
+    /**
+     * Gets the part of the factor the particle quantity is scaled by. When
+     * both the quantity and the frequency are scaled each takes the square
+     * root, so the emitted particles still shrink by the factor only once.
+     */
+    static double getQuantityFactor(double factor, TrailConfig.Density config) {
+        if (!config.scaleQuantity || factor >= 1) {
+            return 1;
+        }
+        return config.scaleFrequency ? Math.sqrt(factor) : factor;
+    }
+
+    /**
+     * Gets the part of the factor the emission frequency is scaled by, see
+     * {@link #getQuantityFactor}.
+     */
+    static double getFrequencyFactor(double factor, TrailConfig.Density config) {
+        if (!config.scaleFrequency || factor >= 1) {
+            return 1;
+        }
+        return config.scaleQuantity ? Math.sqrt(factor) : factor;
+    }
+
+    @Nullable
+    private TrailConfig.Region findRegion(UUID worldId, double x, double y, double z, TrailConfig.Density config) {
+        if (config.regions.isEmpty()) {
+            return null;
+        }
+        TrailConfig.Region[] regions = this.regionsByWorld.get(worldId);
+        if (regions == null) {
+            regions = resolveRegions(worldId, config);
+            this.regionsByWorld.put(worldId, regions);
+        }
+        for (final TrailConfig.Region region : regions) {
+            if (region.contains(x, y, z)) {
+                return region;
+            }
+        }
+        return null;
+    }
+
+    private static TrailConfig.Region[] resolveRegions(UUID worldId, TrailConfig.Density config) {
+        final String worldName = Sponge.getServer().getWorldProperties(worldId).map(WorldProperties::getWorldName).orElse(null);
+        if (worldName == null) {
+            return NO_REGIONS;
+        }
+        final List<TrailConfig.Region> regions = new ArrayList<>();
+        for (TrailConfig.Region region : config.regions) {
+            if (worldName.equalsIgnoreCase(region.world)) {
+                regions.add(region);
+            }
+        }
+        return regions.isEmpty() ? NO_REGIONS : regions.toArray(NO_REGIONS);
+    }
+
+    void invalidate() {
+        this.regionsByWorld.clear();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.google.common.collect.Sets;
+import org.spongepowered.api.effect.particle.ParticleEffect;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the {@link ParticleEffect}s of registered trails, so trails that
+ * define the same effect share one instance and one {@link TrailPayload}.
+ * Payloads are held until a reload no longer uses their effect, see
+ * {@link #retain(Iterable)}.
+ */
+final class EffectPool {
+
+    private final Map<ParticleEffect, TrailPayload> payloads = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the shared payload of an effect equal to the given one, its
+     * {@link TrailPayload#effect} is the interned instance.
+     */
+    TrailPayload getPayload(ParticleEffect effect) {
+        return this.payloads.computeIfAbsent(effect, TrailPayload::new);
+    }
+
+    /**
+     * Drops the payloads whose effect none of the trails use.
+     */
+    void retain(Iterable<Trail> trails) {
+        final Set<ParticleEffect> used = Sets.newIdentityHashSet();
+        for (Trail trail : trails) {
+            used.add(trail.getPayload().effect);
+        }
+        this.payloads.values().removeIf(payload -> !used.contains(payload.effect));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Emitter state stored as parallel primitive arrays indexed by slot. Every
+ * emitter takes one slot holding the index of its trail in the
+ * {@link TrailRegistry}, the tick it is next due on, its timing wheel links
+ * and phase, where its owner was last seen moving, which is where it
+ * emits, its flags and the {@link SpatialIndex.Cell cell} it is counted
+ * in. Released slots are kept on a free list, so adding and removing
+ * emitters is O(1) and the arrays stay dense.
+ *
+ * <p>Emitters owned by a player also point back at their
+ * {@link PlayerWrapper session}. Only used from the main thread.</p>
+ */
+final class EmitterTable {
+
+    static final int NONE = -1;
+
+    // Set once the owner's position is known
+    static final byte POSITIONED = 1;
+    // Set while the owner is vanished or spectating, hidden emitters leave no trail
+    static final byte HIDDEN = 1 << 1;
+
+    int[] trailIndex;
+    long[] dueTick;
+    int[] wheelNext;
+    int[] wheelPrev;
+    int[] wheelBucket;
+    int[] phaseInterval;
+    int[] phase;
+    // Where the owner was last seen moving, on which tick, and how far it moved since the last distance sample
+    double[] lastX;
+    double[] lastY;
+    double[] lastZ;
+    long[] lastMoveTick;
+    double[] traveled;
+    byte[] flags;
+    SpatialIndex.Cell[] cells;
+    PlayerWrapper[] owners;
+
+    private int[] free;
+    private int freeCount;
+    private int highWater;
+    private int size;
+
+    EmitterTable() {
+        this(64);
+    }
+
+    EmitterTable(int capacity) {
+        allocateArrays(Math.max(1, capacity));
+    }
+
+    private void allocateArrays(int capacity) {
+        this.trailIndex = new int[capacity];
+        this.dueTick = new long[capacity];
+        this.wheelNext = new int[capacity];
+        this.wheelPrev = new int[capacity];
+        this.wheelBucket = new int[capacity];
+        this.phaseInterval = new int[capacity];
+        this.phase = new int[capacity];
+        this.lastX = new double[capacity];
+        this.lastY = new double[capacity];
+        this.lastZ = new double[capacity];
+        this.lastMoveTick = new long[capacity];
+        this.traveled = new double[capacity];
+        this.flags = new byte[capacity];
+        this.cells = new SpatialIndex.Cell[capacity];
+        this.owners = new PlayerWrapper[capacity];
+        this.free = new int[capacity];
+    }
+
+    private void grow() {
+        final int capacity = this.trailIndex.length << 1;
+        this.trailIndex = Arrays.copyOf(this.trailIndex, capacity);
+        this.dueTick = Arrays.copyOf(this.dueTick, capacity);
+        this.wheelNext = Arrays.copyOf(this.wheelNext, capacity);
+        this.wheelPrev = Arrays.copyOf(this.wheelPrev, capacity);
+        this.wheelBucket = Arrays.copyOf(this.wheelBucket, capacity);
+        this.phaseInterval = Arrays.copyOf(this.phaseInterval, capacity);
+        this.phase = Arrays.copyOf(this.phase, capacity);
+        this.lastX = Arrays.copyOf(this.lastX, capacity);
+        this.lastY = Arrays.copyOf(this.lastY, capacity);
+        this.lastZ = Arrays.copyOf(this.lastZ, capacity);
+        this.lastMoveTick = Arrays.copyOf(this.lastMoveTick, capacity);
+        this.traveled = Arrays.copyOf(this.traveled, capacity);
+        this.flags = Arrays.copyOf(this.flags, capacity);
+        this.cells = Arrays.copyOf(this.cells, capacity);
+        this.owners = Arrays.copyOf(this.owners, capacity);
+        this.free = Arrays.copyOf(this.free, capacity);
+    }
+
+    int allocate(@Nullable PlayerWrapper owner, int trail) {
+        final int slot;
+        if (this.freeCount > 0) {
+            slot = this.free[--this.freeCount];
+        } else {
+            if (this.highWater == this.trailIndex.length) {
+                grow();
+            }
+            slot = this.highWater++;
+        }
+        this.trailIndex[slot] = trail;
+        this.dueTick[slot] = 0;
+        this.wheelNext[slot] = NONE;
+        this.wheelPrev[slot] = NONE;
+        this.wheelBucket[slot] = NONE;
+        this.phaseInterval[slot] = 0;
+        this.phase[slot] = 0;
+        this.lastMoveTick[slot] = 0;
+        this.traveled[slot] = 0;
+        this.flags[slot] = 0;
+        this.cells[slot] = null;
+        this.owners[slot] = owner;
+        this.size++;
+        return slot;
+    }
+
+    /**
+     * Releases the slot, the emitter must already be removed from the
+     * timing wheel.
+     */
+    void release(int slot) {
+        this.owners[slot] = null;
+        this.cells[slot] = null;
+        this.trailIndex[slot] = NONE;
+        this.free[this.freeCount++] = slot;
+        this.size--;
+    }
+
+    @Nullable
+    PlayerWrapper getOwner(int slot) {
+        return this.owners[slot];
+    }
+
+    void setLastPosition(int slot, double x, double y, double z, long tick) {
+        this.lastX[slot] = x;
+        this.lastY[slot] = y;
+        this.lastZ[slot] = z;
+        this.lastMoveTick[slot] = tick;
+        this.flags[slot] |= POSITIONED;
+    }
+
+    boolean hasFlag(int slot, byte flag) {
+        return (this.flags[slot] & flag) != 0;
+    }
+
+    void setFlag(int slot, byte flag, boolean value) {
+        if (value) {
+            this.flags[slot] |= flag;
+        } else {
+            this.flags[slot] &= ~flag;
+        }
+    }
+
+    /**
+     * The number of live emitters.
+     */
+    int size() {
+        return this.size;
+    }
+
+    int getCapacity() {
+        return this.trailIndex.length;
+    }
+
+    void clear() {
+        Arrays.fill(this.owners, null);
+        Arrays.fill(this.cells, null);
+        Arrays.fill(this.trailIndex, NONE);
+        this.freeCount = 0;
+        this.highWater = 0;
+        this.size = 0;
+    }
+}
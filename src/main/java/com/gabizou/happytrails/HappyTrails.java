@@ -24,6 +24,8 @@
  */
 package com.gabizou.happytrails;
 
+import com.flowpowered.math.vector.Vector3d;
+import com.google.common.hash.HashCode;
 import com.google.common.reflect.TypeToken;
 import com.google.inject.Inject;
 import ninja.leaping.configurate.ConfigurationNode;
@@ -38,26 +40,42 @@ import org.spongepowered.api.data.DataManager;
 import org.spongepowered.api.data.DataQuery;
 import org.spongepowered.api.data.DataRegistration;
 import org.spongepowered.api.data.key.Key;
+import org.spongepowered.api.data.key.Keys;
 import org.spongepowered.api.data.value.mutable.Value;
+import org.spongepowered.api.entity.Transform;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.gamemode.GameModes;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.Order;
+import org.spongepowered.api.event.cause.entity.damage.source.EntityDamageSource;
+import org.spongepowered.api.event.entity.DamageEntityEvent;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+import org.spongepowered.api.event.entity.living.humanoid.ChangeGameModeEvent;
+import org.spongepowered.api.event.entity.living.humanoid.player.RespawnPlayerEvent;
 import org.spongepowered.api.event.filter.Getter;
+import org.spongepowered.api.event.filter.cause.First;
 import org.spongepowered.api.event.game.GameRegistryEvent;
 import org.spongepowered.api.event.game.GameReloadEvent;
 import org.spongepowered.api.event.game.state.*;
 import org.spongepowered.api.event.network.ClientConnectionEvent;
+import org.spongepowered.api.event.world.SaveWorldEvent;
 import org.spongepowered.api.plugin.Plugin;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.service.ChangeServiceProviderEvent;
+import org.spongepowered.api.service.permission.PermissionService;
+import org.spongepowered.api.world.World;
 
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Plugin(
     id = Constants.MOD_ID,
@@ -74,6 +92,8 @@ public class HappyTrails {
     static final Key<Value<Trail>>
         TRAIL = Key.builder().type(TRAIL_VALUE_TOKEN).query(Constants.KEY_QUERY).id(Constants.KEY_ID).name("Trail").build();
 
+    // Moves shorter than this, squared, are only the player looking around
+    private static final double MIN_MOVE_SQUARED = 1.0E-4;
     @Nullable private static HappyTrails /* this is really hacky*/ INSTANCE;
 
     Logger logger;
@@ -85,10 +105,31 @@ public class HappyTrails {
 
     private HoconConfigurationLoader loader;
 
-    private Map<PlayerWrapper, Trail> playerTrails = new HashMap<>();
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final EmitterTable emitters = new EmitterTable();
+    private final PhaseBalancer balancer = new PhaseBalancer(this.emitters);
+    private final TrailStatistics statistics = new TrailStatistics();
+    private final ParticleBudget budget = new ParticleBudget();
+    private final AllocationProbe allocations = new AllocationProbe();
+    private final DensityController density = new DensityController();
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+    private final VisibilityFilter visibility;
+    private final ViewerResolver viewers;
+    private final TrailSpawner spawner;
+    private final TrailScheduler scheduler;
+    private final PermissionCache permissions = new PermissionCache();
+    private final SelectionWriter selections = new SelectionWriter();
+    private final TriggerIndex triggers = new TriggerIndex();
+    private final NetworkAccounting network = new NetworkAccounting();
 
     @Nullable private Task particleTask;
+    @Nullable private Task selectionTask;
+    @Nullable private Task visibilityTask;
     private TrailConfig config;
+    private final TrailCatalog catalog;
+    private final TrailCache cache;
+    private final ConfigWatcher watcher;
+    private final AtomicLong reloadSequence = new AtomicLong();
 
     @Inject
     private HappyTrails(
@@ -104,6 +145,15 @@ public class HappyTrails {
         this.defaultConfig = defaultConfig;
         this.loader = HoconConfigurationLoader.builder().setPath(this.defaultConfig).build();
         this.config = new TrailConfig();
+        final Path trailDirectory = this.defaultConfig.getParent().resolve("trails");
+        this.catalog = new TrailCatalog(trailDirectory, this.defaultConfig.getParent().resolve("catalog-index.conf"));
+        this.visibility = new VisibilityFilter(this.defaultConfig.getParent().resolve("visibility.conf"), this.emitters);
+        this.viewers = new ViewerResolver(this.spatialIndex, this.visibility);
+        this.spawner = new TrailSpawner(this.emitters, this.balancer, this.spatialIndex, this.viewers, this.density, this.budget,
+            this.network, this.statistics, this.allocations, TrailSpawner.ParticleSender.PLAYER, this.config);
+        this.scheduler = this.spawner.getScheduler();
+        this.cache = new TrailCache(this.defaultConfig.getParent().resolve("trails.bin"));
+        this.watcher = new ConfigWatcher(this.defaultConfig, trailDirectory, this::reloadAsync);
         INSTANCE = this;
     }
 
@@ -131,6 +181,7 @@ public class HappyTrails {
             .manipulatorId(Constants.KEY_ID)
             .dataName("Trail Data")
             .buildAndRegister(this.container);
+        this.manager.registerContentUpdater(TrailData.class, new TrailData.RefUpdater());
     }
 
     @Listener
@@ -148,7 +199,22 @@ public class HappyTrails {
                 e.printStackTrace();
             }
         }
-        loadConfig();
+        TrailRegistry.getInstance().setCatalog(this.catalog);
+        final TrailRefTable refs = new TrailRefTable(this.defaultConfig.getParent().resolve("trail-refs.conf"));
+        try {
+            refs.load();
+            TrailRegistry.getInstance().setRefTable(refs);
+        } catch (IOException e) {
+            this.logger.error("Could not load the trail ref table, trail data is stored by id only", e);
+        }
+        try {
+            this.visibility.load();
+        } catch (IOException e) {
+            this.logger.error("Could not load the trail visibility preferences", e);
+        }
+        // Nothing is ticking yet, so the initial load can stay on this thread
+        final TrailConfig loaded = readConfig();
+        applyConfig(TrailRegistry.getInstance().prepare(loaded == null ? this.config : loaded, scanCatalog()));
     }
 
     @Listener
@@ -160,18 +226,114 @@ public class HappyTrails {
                 e.printStackTrace();
             }
         }
-        loadConfig();
+        reloadAsync();
     }
 
-    private void loadConfig() {
+    /**
+     * Reads the config, taking the trails from the compiled cache when the
+     * config hasn't changed since the cache was written. The config is read
+     * once and parsed from the bytes that were hashed, so an edit in between
+     * can't be cached under the hash of the previous config.
+     */
+    @Nullable
+    private TrailConfig readConfig() {
         try {
-            final CommentedConfigurationNode config = this.loader.load();
-            final TrailConfig trailConfig = config.getValue(TrailConfig.TYPE_TOKEN);
-            this.config = trailConfig == null ? new TrailConfig() : trailConfig;
+            final byte[] bytes = Files.readAllBytes(this.defaultConfig);
+            final HashCode hash = TrailCache.hash(bytes);
+            final CommentedConfigurationNode config = HoconConfigurationLoader.builder()
+                .setSource(() -> new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8)))
+                .build()
+                .load();
+            final List<Trail> cached = this.cache.read(hash);
+            if (cached != null) {
+                config.removeChild("trails");
+            }
+            TrailConfig trailConfig = config.getValue(TrailConfig.TYPE_TOKEN);
+            if (trailConfig == null) {
+                trailConfig = new TrailConfig();
+            }
+            if (cached != null) {
+                trailConfig.trails = cached;
+            } else {
+                this.cache.write(hash, trailConfig.trails);
+            }
+            return trailConfig;
         } catch (IOException | ObjectMappingException e) {
             e.printStackTrace();
-        } finally {
-            TrailRegistry.getInstance().registerFromConfig(this.config);
+            return null;
+        }
+    }
+
+    /**
+     * Parses and diffs the config off the main thread, then hands the
+     * prepared reload to the main thread to apply in one step. A reload that
+     * finishes after a newer one started is dropped.
+     */
+    private void reloadAsync() {
+        final long sequence = this.reloadSequence.incrementAndGet();
+        Task.builder()
+            .async()
+            .name("HappyTrails Config Loader")
+            .execute(() -> {
+                final TrailConfig loaded = readConfig();
+                if (loaded == null) {
+                    this.logger.warn("Could not reload the config, keeping the current trails");
+                    return;
+                }
+                final TrailRegistry.PreparedReload prepared = TrailRegistry.getInstance().prepare(loaded, scanCatalog());
+                Task.builder()
+                    .name("HappyTrails Config Apply")
+                    .execute(() -> {
+                        if (sequence == this.reloadSequence.get()) {
+                            applyConfig(prepared);
+                        }
+                    })
+                    .submit(this);
+            })
+            .submit(this);
+    }
+
+    @Nullable
+    private TrailCatalog.Scan scanCatalog() {
+        try {
+            return this.catalog.scan();
+        } catch (IOException e) {
+            this.logger.error("Could not scan the trail directory, keeping the previous trails", e);
+            return this.catalog.getLastScan();
+        }
+    }
+
+    private void applyConfig(TrailRegistry.PreparedReload prepared) {
+        this.config = prepared.config;
+        this.spawner.setConfig(this.config);
+        final TrailRegistry.ReloadResult result = TrailRegistry.getInstance().apply(prepared);
+        this.logger.info("Loaded trails, " + result);
+        this.density.invalidate();
+        this.permissions.invalidateAll();
+        if (!this.config.debug.measureAllocations) {
+            this.allocations.disable();
+        }
+        // Only handles that now point at another trail may have changed their trigger
+        for (int handle : result.rebound) {
+            this.triggers.rebind(handle, TrailRegistry.getInstance().getByHandle(handle).getTrigger());
+        }
+        if (this.particleTask != null) {
+            updateWatcher();
+        }
+    }
+
+    private void updateWatcher() {
+        final TrailConfig.Reloading reloading = this.config.reloading;
+        if (!reloading.watchConfig) {
+            this.watcher.stop();
+            return;
+        }
+        if (!this.watcher.isRunning()) {
+            try {
+                this.watcher.start(this, reloading.debounceMillis);
+            } catch (IOException e) {
+                this.logger.warn("Could not watch the config for changes", e);
+            }
         }
     }
 
@@ -193,32 +355,186 @@ public class HappyTrails {
         this.particleTask = Task.builder()
             .intervalTicks(1)
             .name("Particle Spawner")
-            .execute(() -> {
-                if (this.playerTrails.isEmpty()) {
-                    return;
-                }
-                final Iterator<Map.Entry<PlayerWrapper, Trail>> iterator = this.playerTrails.entrySet().iterator();
-                for (; iterator.hasNext(); ) {
-                    Map.Entry<PlayerWrapper, Trail> entry = iterator.next();
-                    final Trail value = entry.getValue();
-                    final PlayerWrapper playerId = entry.getKey();
-                    final Player player;
-                    try {
-                        player = playerId.getPlayer();
-                    } catch (Exception e) {
-                        iterator.remove();
-                        continue;
-                    }
-                    if (playerId.cooldown > 0) {
-                        playerId.cooldown--;
-                        continue;
-                    }
-                    playerId.cooldown = value.period;
-                    value.playEffect(player);
-
-                }
-            })
+            .execute(this.spawner::tick)
             .submit(this);
+        this.selectionTask = Task.builder()
+            .intervalTicks(20)
+            .name("HappyTrails Selection Writer")
+            .execute(this.selections::flushDue)
+            .submit(this);
+        this.visibilityTask = Task.builder()
+            .intervalTicks(20)
+            .name("HappyTrails Visibility Refresh")
+            .execute(() -> this.visibility.refresh(this.sessions.getAll()))
+            .submit(this);
+        updateWatcher();
+    }
+
+    /**
+     * Emits a distance sampled trail every spacing blocks along the move,
+     * carrying the remainder over to the next move.
+     */
+    private void sampleMove(int slot, PlayerWrapper session, Trail trail, double distance) {
+        final EmitterTable emitters = this.emitters;
+        final double spacing = trail.getSpacing();
+        final double traveled = emitters.traveled[slot] + distance;
+        if (traveled < spacing) {
+            emitters.traveled[slot] = traveled;
+            return;
+        }
+        final int samples = (int) (traveled / spacing);
+        emitters.traveled[slot] = traveled - samples * spacing;
+        if (samples > this.config.movement.maxSamplesPerMove) {
+            return;
+        }
+        final double fromX = emitters.lastX[slot];
+        final double fromY = emitters.lastY[slot];
+        final double fromZ = emitters.lastZ[slot];
+        // The first sample lies where the carried over distance reaches the spacing
+        double along = spacing - (traveled - distance);
+        for (int i = 0; i < samples; i++, along += spacing) {
+            final double t = along / distance;
+            this.spawner.tryEmit(session, trail, fromX + (session.x - fromX) * t, fromY + (session.y - fromY) * t, fromZ + (session.z - fromZ) * t);
+        }
+    }
+
+    private void scheduleFirst(int slot, Trail trail) {
+        final long now = this.scheduler.getTick();
+        if (this.config.scheduling.staggerEmissions) {
+            this.scheduler.schedule(slot, this.balancer.assign(slot, trail.period + 1, now));
+        } else {
+            this.balancer.release(slot);
+            this.scheduler.schedule(slot, now + 1);
+        }
+    }
+
+    private void startEmitting(PlayerWrapper session, Trail trail) {
+        final int handle = TrailRegistry.getInstance().getHandle(trail);
+        int slot = session.emitterSlot;
+        if (slot == EmitterTable.NONE) {
+            slot = session.emitterSlot = this.emitters.allocate(session, handle);
+            if (session.position != null) {
+                this.emitters.setLastPosition(slot, session.x, session.y, session.z, this.scheduler.getTick());
+            } else {
+                this.emitters.lastMoveTick[slot] = this.scheduler.getTick();
+            }
+            this.emitters.setFlag(slot, EmitterTable.HIDDEN, session.hidden);
+            this.emitters.cells[slot] = session.gridCell;
+            this.spatialIndex.setEmitter(session, true);
+            this.triggers.add(handle, trail.getTrigger());
+            session.trigger = null;
+            if (trail.isPolled()) {
+                scheduleFirst(slot, trail);
+            }
+            return;
+        }
+        final Trail previous = TrailRegistry.getInstance().getByHandle(this.emitters.trailIndex[slot]);
+        this.triggers.remove(this.emitters.trailIndex[slot]);
+        this.triggers.add(handle, trail.getTrigger());
+        session.trigger = null;
+        this.emitters.trailIndex[slot] = handle;
+        // Picking a trail counts as activity
+        this.emitters.lastMoveTick[slot] = this.scheduler.getTick();
+        this.spatialIndex.setEmitter(session, true);
+        if (!trail.isPolled()) {
+            this.scheduler.cancel(slot);
+            this.balancer.release(slot);
+        } else if (!this.scheduler.isScheduled(slot) || previous.period != trail.period) {
+            scheduleFirst(slot, trail);
+        }
+    }
+
+    private void checkMovementTrigger(PlayerWrapper session, Player player, TrailTrigger trigger, double fromY) {
+        final boolean onGround = player.isOnGround();
+        if (session.trigger != trigger) {
+            // Start from the current state so the first move doesn't look like a change
+            session.trigger = trigger;
+            session.onGround = onGround;
+            session.sprinting = player.get(Keys.IS_SPRINTING).orElse(false);
+            session.gliding = player.get(Keys.IS_ELYTRA_FLYING).orElse(false);
+            return;
+        }
+        final boolean fire;
+        switch (trigger) {
+            case JUMP:
+                fire = session.onGround && !onGround && session.y > fromY;
+                break;
+            case LAND:
+                fire = !session.onGround && onGround;
+                break;
+            case SPRINT_START:
+                final boolean sprinting = player.get(Keys.IS_SPRINTING).orElse(false);
+                fire = sprinting && !session.sprinting;
+                session.sprinting = sprinting;
+                break;
+            case GLIDE:
+                session.gliding = player.get(Keys.IS_ELYTRA_FLYING).orElse(false);
+                fire = session.gliding;
+                break;
+            default:
+                fire = false;
+        }
+        session.onGround = onGround;
+        if (fire) {
+            fireTrigger(session, session.x, session.y, session.z);
+        }
+    }
+
+    /**
+     * Emits an event triggered trail, at most once per period.
+     */
+    private void fireTrigger(PlayerWrapper session, double x, double y, double z) {
+        final int slot = session.emitterSlot;
+        if (slot == EmitterTable.NONE) {
+            return;
+        }
+        final long now = this.scheduler.getTick();
+        // Triggered trails are never on the timing wheel, so the due tick holds their cooldown
+        if (now < this.emitters.dueTick[slot]) {
+            return;
+        }
+        final Trail trail = TrailRegistry.getInstance().getByHandle(this.emitters.trailIndex[slot]);
+        this.emitters.dueTick[slot] = now + trail.period + 1;
+        this.spawner.tryEmit(session, trail, x, y, z);
+    }
+
+    private void stopEmitting(PlayerWrapper session) {
+        final int slot = session.emitterSlot;
+        if (slot != EmitterTable.NONE) {
+            this.scheduler.cancel(slot);
+            this.balancer.release(slot);
+            this.triggers.remove(this.emitters.trailIndex[slot]);
+            this.emitters.release(slot);
+            session.emitterSlot = EmitterTable.NONE;
+        }
+        session.trigger = null;
+        this.spatialIndex.setEmitter(session, false);
+    }
+
+    private void updatePosition(PlayerWrapper session, Transform<World> transform) {
+        this.spatialIndex.update(session, transform.getExtent().getUniqueId(), transform.getPosition());
+        final int slot = session.emitterSlot;
+        if (slot == EmitterTable.NONE) {
+            return;
+        }
+        final EmitterTable emitters = this.emitters;
+        emitters.cells[slot] = session.gridCell;
+        final double dx = session.x - emitters.lastX[slot];
+        final double dy = session.y - emitters.lastY[slot];
+        final double dz = session.z - emitters.lastZ[slot];
+        final double distanceSquared = dx * dx + dy * dy + dz * dz;
+        if (distanceSquared < MIN_MOVE_SQUARED && emitters.hasFlag(slot, EmitterTable.POSITIONED)) {
+            // Only looked around
+            return;
+        }
+        final Trail trail = TrailRegistry.getInstance().getByHandle(emitters.trailIndex[slot]);
+        if (trail.isDistanceSampled()) {
+            sampleMove(slot, session, trail, Math.sqrt(distanceSquared));
+        } else if (trail.isPolled() && !this.scheduler.isScheduled(slot)) {
+            this.spatialIndex.setEmitter(session, true);
+            scheduleFirst(slot, trail);
+        }
+        emitters.setLastPosition(slot, session.x, session.y, session.z, this.scheduler.getTick());
     }
 
     @Listener
@@ -227,57 +543,199 @@ public class HappyTrails {
             this.particleTask.cancel();
             this.particleTask = null;
         }
-        this.playerTrails.clear();
+        if (this.selectionTask != null) {
+            this.selectionTask.cancel();
+            this.selectionTask = null;
+        }
+        if (this.visibilityTask != null) {
+            this.visibilityTask.cancel();
+            this.visibilityTask = null;
+        }
+        this.selections.flushAll();
+        TrailRegistry.getInstance().saveRefs();
+        this.watcher.stop();
+        this.scheduler.clear();
+        this.balancer.clear();
+        this.emitters.clear();
+        this.spatialIndex.clear();
+        this.budget.reset();
+        this.allocations.disable();
+        this.allocations.reset();
+        this.statistics.reset();
+        this.selections.reset();
+        this.triggers.clear();
+        this.visibility.reset();
+        this.network.reset();
+        this.sessions.clear();
     }
 
 
     @Listener
     public void onPlayerJoin(ClientConnectionEvent.Join event, @Getter("getTargetEntity") Player player) {
-        player.get(TrailData.class).ifPresent(data -> this.playerTrails.put(new PlayerWrapper(player), data.getTrail()));
+        final PlayerWrapper session = this.sessions.join(player);
+        this.visibility.join(session, player);
+        this.spatialIndex.update(session, player.getWorld().getUniqueId(), player.getLocation().getPosition());
+        player.get(TrailData.class).ifPresent(data -> startEmitting(session, data.getTrail()));
     }
 
 
     @Listener
     public void onDisconnect(ClientConnectionEvent.Disconnect event, @Getter("getTargetEntity") Player player) {
-        // Remove the player from the mapping, other reasons why the player would be removed
-        // are unknown.
-        for (final Iterator<Map.Entry<PlayerWrapper, Trail>> iterator = this.playerTrails.entrySet().iterator(); iterator.hasNext(); ) {
-            final Map.Entry<PlayerWrapper, Trail> next = iterator.next();
-            if (next.getKey().playerId.equals(player.getUniqueId())) {
-                iterator.remove();
-                break;
-            }
+        final PlayerWrapper session = this.sessions.quit(player.getUniqueId());
+        if (session != null) {
+            stopEmitting(session);
+            this.spatialIndex.remove(session);
+            this.visibility.quit(session, this.sessions.getAll());
+        }
+        this.permissions.invalidate(player.getUniqueId());
+        this.selections.flush(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onGameModeChange(ChangeGameModeEvent.TargetPlayer event, @Getter("getTargetEntity") Player player) {
+        final PlayerWrapper session = this.sessions.getNullable(player.getUniqueId());
+        if (session != null) {
+            this.visibility.setHidden(session, event.getGameMode() == GameModes.SPECTATOR || player.get(Keys.VANISH).orElse(false));
         }
+    }
 
+    @Listener
+    public void onWorldSave(SaveWorldEvent.Pre event) {
+        this.selections.flushAll();
     }
 
-    void setPlayer(Player player, Trail trail) {
-        boolean existed = false;
-        for (final Map.Entry<PlayerWrapper, Trail> next : this.playerTrails.entrySet()) {
-            if (next.getKey().playerId.equals(player.getUniqueId())) {
-                next.setValue(trail);
-                existed = true;
-                break;
+    @Listener
+    public void onServiceChange(ChangeServiceProviderEvent event) {
+        if (event.getService() == PermissionService.class) {
+            this.permissions.invalidateAll();
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onMove(MoveEntityEvent event, @Getter("getTargetEntity") Player player) {
+        final PlayerWrapper session = this.sessions.getNullable(player.getUniqueId());
+        if (session != null) {
+            updatePosition(session, event.getToTransform());
+            if (this.triggers.hasMovementTriggers() && session.emitterSlot != EmitterTable.NONE) {
+                final TrailTrigger trigger = this.triggers.get(this.emitters.trailIndex[session.emitterSlot]);
+                if (trigger != null && trigger.isMovement()) {
+                    checkMovementTrigger(session, player, trigger, event.getFromTransform().getPosition().getY());
+                }
             }
         }
-        if (!existed) {
-            this.playerTrails.put(new PlayerWrapper(player), trail);
+    }
+
+    @Listener(order = Order.POST)
+    public void onDamage(DamageEntityEvent event, @First EntityDamageSource source) {
+        if (this.triggers.isEmpty(TrailTrigger.HIT) || !(source.getSource() instanceof Player)) {
+            return;
+        }
+        final PlayerWrapper session = this.sessions.getNullable(source.getSource().getUniqueId());
+        if (session != null && session.emitterSlot != EmitterTable.NONE
+            && this.triggers.get(this.emitters.trailIndex[session.emitterSlot]) == TrailTrigger.HIT) {
+            final Vector3d target = event.getTargetEntity().getLocation().getPosition();
+            fireTrigger(session, target.getX(), target.getY(), target.getZ());
         }
-        final TrailData trailData = player.get(TrailData.class).orElseGet(() -> new TrailData(trail));
-        trailData.setTrail(trail);
-        player.offer(trailData);
     }
 
-    void removePlayer(Player player) {
-        final Iterator<Map.Entry<PlayerWrapper, Trail>> iterator = this.playerTrails.entrySet().iterator();
-        for (; iterator.hasNext(); ) {
-            final Map.Entry<PlayerWrapper, Trail> next = iterator.next();
-            if (next.getKey().playerId.equals(player.getUniqueId())) {
-                iterator.remove();
-                break;
-            }
+    @Listener(order = Order.POST)
+    public void onWorldChange(MoveEntityEvent.Teleport event, @Getter("getTargetEntity") Player player) {
+        if (!event.getFromTransform().getExtent().getUniqueId().equals(event.getToTransform().getExtent().getUniqueId())) {
+            this.sessions.changeWorld(player);
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onRespawn(RespawnPlayerEvent event, @Getter("getTargetEntity") Player player) {
+        // The player entity is recreated on respawn, possibly in another world.
+        this.sessions.changeWorld(player);
+        final PlayerWrapper session = this.sessions.getNullable(player.getUniqueId());
+        if (session != null) {
+            updatePosition(session, event.getToTransform());
         }
-        player.remove(TrailData.class);
+    }
+
+    SessionRegistry getSessions() {
+        return this.sessions;
+    }
 
+    EmitterTable getEmitters() {
+        return this.emitters;
+    }
+
+    TrailScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    PhaseBalancer getPhaseBalancer() {
+        return this.balancer;
+    }
+
+    AllocationProbe getAllocationProbe() {
+        return this.allocations;
+    }
+
+    ParticleBudget getBudget() {
+        return this.budget;
+    }
+
+    SpatialIndex getSpatialIndex() {
+        return this.spatialIndex;
+    }
+
+    TrailStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Sets whose trails the player sees and saves the preference off the
+     * main thread.
+     */
+    void setVisibility(Player player, TrailVisibility visibility) {
+        this.visibility.set(this.sessions.getOrJoin(player), visibility, this.sessions.getAll());
+        Task.builder()
+            .async()
+            .name("HappyTrails Visibility Save")
+            .execute(() -> {
+                try {
+                    this.visibility.save();
+                } catch (IOException e) {
+                    this.logger.error("Could not save the trail visibility preferences", e);
+                }
+            })
+            .submit(this);
+    }
+
+    TrailVisibility getVisibility(Player player) {
+        return this.visibility.get(player.getUniqueId());
+    }
+
+    NetworkAccounting getNetwork() {
+        return this.network;
+    }
+
+    SelectionWriter getSelections() {
+        return this.selections;
+    }
+
+    PermissionCache getPermissionCache() {
+        return this.permissions;
+    }
+
+    TrailConfig getConfig() {
+        return this.config;
+    }
+
+    void setPlayer(Player player, Trail trail) {
+        startEmitting(this.sessions.getOrJoin(player), trail);
+        this.selections.select(player, trail, this.config.persistence);
+    }
+
+    void removePlayer(Player player) {
+        final PlayerWrapper session = this.sessions.getNullable(player.getUniqueId());
+        if (session != null) {
+            stopEmitting(session);
+        }
+        this.selections.select(player, null, this.config.persistence);
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the particle packets and bytes the plugin sends, per emitter,
+ * per trail and per viewer, and enforces the per viewer packet cap.
+ *
+ * <p>Sponge sends one particle packet per effect, or one per particle when
+ * the effect has a velocity. Every packet is estimated at
+ * {@value #PACKET_BYTES} bytes: the packet id and length, the particle id,
+ * position, offset, speed, count and a possible particle argument.</p>
+ *
+ * <p>Each viewer has a token bucket refilled at the cap every second, up to
+ * one second's worth. Buckets are charged for the prebuilt
+ * {@link TrailPayload} variant that is actually sent. An emission the
+ * viewer can't afford is thinned to the largest variant the packets left
+ * pay for when it is sent per particle, or dropped otherwise. Emitters are
+ * visited in timing wheel order, which the phase balancer spreads across
+ * ticks, so no emitter is always first in line. Only used from the main
+ * thread.</p>
+ */
+final class NetworkAccounting {
+
+    static final int PACKET_BYTES = 38;
+    private static final double TICKS_PER_SECOND = 20;
+
+    private long[] trailPackets = new long[16];
+    private long[] trailBytes = new long[16];
+    private long totalPackets;
+    private long thinned;
+    private long dropped;
+
+    /**
+     * Gets the step of the payload variant the viewer may be sent out of the
+     * requested one, {@link TrailPayload#NONE} to drop the emission, and
+     * takes the packets of that variant from their bucket.
+     */
+    int allow(PlayerWrapper viewer, TrailPayload payload, int step, int capPerSecond, long tick) {
+        if (capPerSecond <= 0) {
+            return step;
+        }
+        final double perTick = capPerSecond / TICKS_PER_SECOND;
+        final double tokens = Math.min(capPerSecond, viewer.netTokens + (tick - viewer.netTokenTick) * perTick);
+        viewer.netTokenTick = tick;
+        final int packets = payload.perParticle ? payload.getVariantQuantity(step) : 1;
+        if (tokens >= packets) {
+            viewer.netTokens = tokens - packets;
+            return step;
+        }
+        if (payload.perParticle) {
+            // Thinned to the largest variant the bucket can still pay for in full
+            final int thinned = payload.getFloorStep((int) tokens);
+            if (thinned != TrailPayload.NONE) {
+                this.thinned++;
+                viewer.netTokens = tokens - payload.getVariantQuantity(thinned);
+                return thinned;
+            }
+        }
+        this.dropped++;
+        viewer.netTokens = tokens;
+        return TrailPayload.NONE;
+    }
+
+    void record(PlayerWrapper emitter, int trailHandle, PlayerWrapper viewer, int quantity, boolean perParticle) {
+        final int packets = perParticle ? quantity : 1;
+        final long bytes = (long) packets * PACKET_BYTES;
+        emitter.netSentPackets += packets;
+        emitter.netSentBytes += bytes;
+        viewer.netReceivedPackets += packets;
+        viewer.netReceivedBytes += bytes;
+        if (trailHandle >= this.trailPackets.length) {
+            final int length = Math.max(trailHandle + 1, this.trailPackets.length << 1);
+            this.trailPackets = Arrays.copyOf(this.trailPackets, length);
+            this.trailBytes = Arrays.copyOf(this.trailBytes, length);
+        }
+        this.trailPackets[trailHandle] += packets;
+        this.trailBytes[trailHandle] += bytes;
+        this.totalPackets += packets;
+    }
+
+    long getTotalPackets() {
+        return this.totalPackets;
+    }
+
+    long getTotalBytes() {
+        return this.totalPackets * PACKET_BYTES;
+    }
+
+    /**
+     * The number of trail handles with counters, see
+     * {@link TrailRegistry#getByHandle(int)}.
+     */
+    int getTrailCount() {
+        return this.trailPackets.length;
+    }
+
+    long getTrailPackets(int handle) {
+        return this.trailPackets[handle];
+    }
+
+    long getTrailBytes(int handle) {
+        return this.trailBytes[handle];
+    }
+
+    long getThinned() {
+        return this.thinned;
+    }
+
+    long getDropped() {
+        return this.dropped;
+    }
+
+    void reset() {
+        Arrays.fill(this.trailPackets, 0);
+        Arrays.fill(this.trailBytes, 0);
+        this.totalPackets = 0;
+        this.thinned = 0;
+        this.dropped = 0;
+    }
+}
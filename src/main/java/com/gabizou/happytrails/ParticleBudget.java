@@ -0,0 +1,101 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+/**
+ * A global per-tick particle budget that adapts to server load. Tick time is
+ * measured as the interval between runs of the particle spawner, smoothed
+ * with an exponential moving average. Once it exceeds the configured
+ * pressure threshold the budget scale drops immediately, which scales down
+ * trail quantities, stretches periods and drops low priority trails. When
+ * load falls the scale recovers gradually so trails don't flicker back on.
+ *
+ * <p>Only used from the main thread.</p>
+ */
+final class ParticleBudget {
+
+    private static final double SMOOTHING = 0.1;
+    private static final double NANOS_PER_MILLI = 1_000_000D;
+
+    private long lastTickNanos;
+    private double tickMillis = 50;
+    private double scale = 1;
+    private long remaining;
+
+    void startTick(TrailConfig.Budget config) {
+        final long now = System.nanoTime();
+        if (this.lastTickNanos != 0) {
+            final double elapsed = (now - this.lastTickNanos) / NANOS_PER_MILLI;
+            this.tickMillis += (elapsed - this.tickMillis) * SMOOTHING;
+        }
+        this.lastTickNanos = now;
+        final double range = Math.max(1, config.pressureMaxMillis - config.pressureStartMillis);
+        final double pressure = Math.min(1, Math.max(0, (this.tickMillis - config.pressureStartMillis) / range));
+        final double target = 1 - pressure * (1 - config.minimumScale);
+        if (target < this.scale) {
+            this.scale = target;
+        } else {
+            this.scale = Math.min(target, this.scale + config.recoveryPerTick);
+        }
+        this.remaining = config.maxParticlesPerTick <= 0 ? Long.MAX_VALUE : (long) (config.maxParticlesPerTick * this.scale);
+    }
+
+    boolean shouldDrop(int priority, TrailConfig.Budget config) {
+        return this.scale < config.dropBelowScale && priority < config.dropPriorityBelow;
+    }
+
+    int scaleQuantity(int quantity) {
+        return this.scale >= 1 ? quantity : Math.max(1, (int) Math.round(quantity * this.scale));
+    }
+
+    int stretchInterval(int interval, TrailConfig.Budget config) {
+        if (this.scale >= 1) {
+            return interval;
+        }
+        return (int) Math.ceil(interval * (1 + (1 - this.scale) * (config.maxPeriodStretch - 1)));
+    }
+
+    boolean tryConsume(long particles) {
+        if (particles > this.remaining) {
+            return false;
+        }
+        this.remaining -= particles;
+        return true;
+    }
+
+    double getTickMillis() {
+        return this.tickMillis;
+    }
+
+    double getScale() {
+        return this.scale;
+    }
+
+    void reset() {
+        this.lastTickNanos = 0;
+        this.tickMillis = 50;
+        this.scale = 1;
+    }
+}
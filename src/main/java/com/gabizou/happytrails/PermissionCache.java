@@ -0,0 +1,102 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the ids of the trails each player is permitted to use, so tab
+ * completion and parsing of the trail argument don't ask the permission
+ * service about every trail on every key press.
+ *
+ * <p>A player's set is computed on first use and dropped on quit, on every
+ * registry reload and when the permission service is replaced. Sponge has
+ * no event for permission changes within a service, so sets also expire
+ * after {@code commands.permissionCacheSeconds}.</p>
+ */
+final class PermissionCache {
+
+    private static final class Entry {
+
+        final String prefix;
+        final Set<String> permitted;
+        final long expiresAt;
+
+        Entry(String prefix, Set<String> permitted, long expiresAt) {
+            this.prefix = prefix;
+            this.permitted = permitted;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the source may use the trail with the given lowercase id, only
+     * players are cached.
+     */
+    boolean isPermitted(CommandSource source, String prefix, String id) {
+        if (!(source instanceof Player)) {
+            return source.hasPermission(prefix + trim(id));
+        }
+        return getPermitted((Player) source, prefix).contains(id);
+    }
+
+    private Set<String> getPermitted(Player player, String prefix) {
+        final long now = System.nanoTime();
+        final Entry entry = this.entries.get(player.getUniqueId());
+        if (entry != null && entry.prefix.equals(prefix) && now - entry.expiresAt < 0) {
+            return entry.permitted;
+        }
+        final Set<String> permitted = new HashSet<>();
+        for (String id : TrailRegistry.getInstance().getSnapshot().ids) {
+            if (player.hasPermission(prefix + trim(id))) {
+                permitted.add(id);
+            }
+        }
+        final long ttl = TimeUnit.SECONDS.toNanos(HappyTrails.getInstance().getConfig().commands.permissionCacheSeconds);
+        this.entries.put(player.getUniqueId(), new Entry(prefix, permitted, now + ttl));
+        return permitted;
+    }
+
+    private static String trim(String id) {
+        return id.substring(id.indexOf(':') + 1);
+    }
+
+    void invalidate(UUID playerId) {
+        this.entries.remove(playerId);
+    }
+
+    void invalidateAll() {
+        this.entries.clear();
+    }
+}
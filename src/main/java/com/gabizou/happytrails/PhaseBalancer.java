@@ -0,0 +1,117 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Spreads emitters sharing the same emission interval evenly across the
+ * ticks of that interval. Every new emitter is assigned the phase with the
+ * fewest emitters, so players who set the same trail on the same tick (or
+ * all join with a cooldown of zero) no longer fire together.
+ *
+ * <p>Only used from the main thread.</p>
+ */
+final class PhaseBalancer {
+
+    // The emitters per phase, indexed by interval and grown to the longest interval seen
+    private int[][] phaseCounts = new int[16][];
+    private final EmitterTable emitters;
+
+    PhaseBalancer(EmitterTable emitters) {
+        this.emitters = emitters;
+    }
+
+    /**
+     * Assigns a phase to the emitter for the given interval and returns the
+     * first tick after {@code now} that falls on that phase.
+     */
+    long assign(int slot, int interval, long now) {
+        release(slot);
+        if (interval <= 1) {
+            return now + 1;
+        }
+        if (interval >= this.phaseCounts.length) {
+            this.phaseCounts = Arrays.copyOf(this.phaseCounts, Math.max(interval + 1, this.phaseCounts.length << 1));
+        }
+        int[] counts = this.phaseCounts[interval];
+        if (counts == null) {
+            counts = this.phaseCounts[interval] = new int[interval];
+        }
+        // Start with the soonest phase so ties resolve to the earliest emission
+        final int first = (int) ((now + 1) % interval);
+        int best = first;
+        for (int offset = 1; offset < interval; offset++) {
+            final int phase = (first + offset) % interval;
+            if (counts[phase] < counts[best]) {
+                best = phase;
+            }
+        }
+        counts[best]++;
+        this.emitters.phase[slot] = best;
+        this.emitters.phaseInterval[slot] = interval;
+        return now + 1 + Math.floorMod(best - first, interval);
+    }
+
+    void release(int slot) {
+        final int interval = this.emitters.phaseInterval[slot];
+        if (interval <= 0) {
+            return;
+        }
+        final int phase = this.emitters.phase[slot];
+        final int[] counts = getPhaseCounts(interval);
+        if (counts != null && counts[phase] > 0) {
+            counts[phase]--;
+        }
+        this.emitters.phaseInterval[slot] = 0;
+        this.emitters.phase[slot] = 0;
+    }
+
+    /**
+     * The longest interval emitters were assigned a phase for.
+     */
+    int getMaxInterval() {
+        for (int interval = this.phaseCounts.length - 1; interval > 1; interval--) {
+            if (this.phaseCounts[interval] != null) {
+                return interval;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the number of emitters on each phase of the interval, or null if
+     * no emitter was assigned a phase for it.
+     */
+    @Nullable
+    int[] getPhaseCounts(int interval) {
+        return interval < this.phaseCounts.length ? this.phaseCounts[interval] : null;
+    }
+
+    void clear() {
+        Arrays.fill(this.phaseCounts, null);
+    }
+}
@@ -24,35 +24,104 @@
  */
 package com.gabizou.happytrails;
 
+import com.flowpowered.math.vector.Vector3d;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scoreboard.Team;
 
+import javax.annotation.Nullable;
 import java.lang.ref.WeakReference;
+import java.util.BitSet;
 import java.util.Optional;
 import java.util.UUID;
 
+/**
+ * The per-player session tracked by the {@link SessionRegistry}. A session
+ * lives exactly from the player's join to their disconnect, so liveness is
+ * decided by presence in the registry and not by resolving the player.
+ *
+ * <p>Fields read by async threads are volatile, everything else is only
+ * touched on the main thread.</p>
+ */
 class PlayerWrapper {
 
-    private WeakReference<Player> playerReference;
-    UUID playerId;
-    int cooldown;
+    private volatile WeakReference<Player> playerReference;
+    final UUID playerId;
+    // Dense index handed out by the SessionRegistry, reused once the player quits
+    int slot;
+
+    // The slot of this session's emitter in the EmitterTable, if wearing a trail
+    int emitterSlot = EmitterTable.NONE;
+
+    // Last known position and cell in the SpatialIndex
+    @Nullable Vector3d position;
+    double x;
+    double y;
+    double z;
+    @Nullable UUID gridWorld;
+    @Nullable SpatialIndex.Cell gridCell;
+    long gridCellKey;
+    boolean gridEmitter;
+
+    // The movement trigger the state below was last sampled for, the state its next move is compared against
+    @Nullable TrailTrigger trigger;
+    boolean onGround;
+    boolean sprinting;
+    boolean gliding;
+
+    // Maintained by the VisibilityFilter
+    TrailVisibility visibility = TrailVisibility.ALL;
+    final BitSet friends = new BitSet();
+    boolean hidden;
+    @Nullable Team team;
+
+    // Maintained by the NetworkAccounting
+    long netSentPackets;
+    long netSentBytes;
+    long netReceivedPackets;
+    long netReceivedBytes;
+    double netTokens;
+    long netTokenTick;
 
     PlayerWrapper(Player player) {
         this.playerReference = new WeakReference<>(player);
         this.playerId = player.getUniqueId();
     }
 
+    @Nullable
     Player getPlayer() {
         Player temp = this.playerReference.get();
         if (temp != null) {
             return temp;
         }
+        // The player entity is replaced on respawn, normally refreshed through rebind,
+        // this is only a fallback if an event was missed.
         final Optional<Player> player = Sponge.getServer().getPlayer(this.playerId);
         if (!player.isPresent()) {
-            throw new IllegalStateException("Outdated player wrapper reference!");
+            return null;
         }
         this.playerReference = new WeakReference<>(player.get());
         return player.get();
     }
 
+    void rebind(Player player) {
+        this.playerReference = new WeakReference<>(player);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return this.playerId.equals(((PlayerWrapper) o).playerId);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.playerId.hashCode();
+    }
+
 }
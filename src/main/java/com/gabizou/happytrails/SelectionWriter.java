@@ -0,0 +1,155 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the trail selections of players in memory and writes them to the
+ * player's {@link TrailData} behind the scenes. A player cycling through
+ * trails only dirties their data once: changes are coalesced and only the
+ * final selection is written, once the player has stopped changing it for
+ * {@code persistence.flushDelaySeconds}, when they quit or when the worlds
+ * are saved.
+ */
+final class SelectionWriter {
+
+    private static final class Pending {
+
+        // Null removes the data
+        @Nullable Trail trail;
+        long dueNanos;
+
+        Pending(@Nullable Trail trail, long dueNanos) {
+            this.trail = trail;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Pending> pending = new ConcurrentHashMap<>();
+
+    private long changes;
+    private long writes;
+    private long coalesced;
+
+    /**
+     * Records the new selection of the player, null to remove it.
+     */
+    void select(Player player, @Nullable Trail trail, TrailConfig.Persistence persistence) {
+        this.changes++;
+        if (!persistence.writeBehind) {
+            write(player, trail);
+            return;
+        }
+        final long due = System.nanoTime() + TimeUnit.SECONDS.toNanos(persistence.flushDelaySeconds);
+        final Pending existing = this.pending.get(player.getUniqueId());
+        if (existing == null) {
+            this.pending.put(player.getUniqueId(), new Pending(trail, due));
+        } else {
+            // The earlier selection was never written
+            this.coalesced++;
+            existing.trail = trail;
+            existing.dueNanos = due;
+        }
+    }
+
+    /**
+     * Writes the selections that have settled for the flush delay.
+     */
+    void flushDue() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        for (Iterator<Map.Entry<UUID, Pending>> iterator = this.pending.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<UUID, Pending> entry = iterator.next();
+            if (now - entry.getValue().dueNanos >= 0) {
+                iterator.remove();
+                Sponge.getServer().getPlayer(entry.getKey()).ifPresent(player -> write(player, entry.getValue().trail));
+            }
+        }
+    }
+
+    void flush(Player player) {
+        final Pending pending = this.pending.remove(player.getUniqueId());
+        if (pending != null) {
+            write(player, pending.trail);
+        }
+    }
+
+    void flushAll() {
+        for (UUID playerId : this.pending.keySet()) {
+            final Pending pending = this.pending.remove(playerId);
+            if (pending != null) {
+                Sponge.getServer().getPlayer(playerId).ifPresent(player -> write(player, pending.trail));
+            }
+        }
+    }
+
+    private void write(Player player, @Nullable Trail trail) {
+        this.writes++;
+        if (trail == null) {
+            player.remove(TrailData.class);
+            return;
+        }
+        final TrailData trailData = player.get(TrailData.class).orElseGet(() -> new TrailData(trail));
+        trailData.setTrail(trail);
+        player.offer(trailData);
+    }
+
+    int getPendingCount() {
+        return this.pending.size();
+    }
+
+    long getChanges() {
+        return this.changes;
+    }
+
+    long getWrites() {
+        return this.writes;
+    }
+
+    /**
+     * Gets the number of selections that were replaced before being written.
+     */
+    long getWritesSaved() {
+        return this.coalesced;
+    }
+
+    void reset() {
+        this.pending.clear();
+        this.changes = 0;
+        this.writes = 0;
+        this.coalesced = 0;
+    }
+}
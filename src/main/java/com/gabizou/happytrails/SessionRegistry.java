@@ -0,0 +1,107 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import org.spongepowered.api.entity.living.player.Player;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the {@link PlayerWrapper sessions} of online players keyed by their
+ * {@link UUID}. All lifecycle transitions (join, quit, world change and
+ * respawn) are driven explicitly by {@link HappyTrails} listeners on the main
+ * thread, lookups are safe from any thread.
+ */
+final class SessionRegistry {
+
+    private final ConcurrentHashMap<UUID, PlayerWrapper> sessions = new ConcurrentHashMap<>();
+    private final Collection<PlayerWrapper> view = Collections.unmodifiableCollection(this.sessions.values());
+    private final BitSet slots = new BitSet();
+
+    PlayerWrapper join(Player player) {
+        final PlayerWrapper session = new PlayerWrapper(player);
+        synchronized (this.slots) {
+            session.slot = this.slots.nextClearBit(0);
+            this.slots.set(session.slot);
+        }
+        final PlayerWrapper previous = this.sessions.put(session.playerId, session);
+        if (previous != null) {
+            releaseSlot(previous);
+        }
+        return session;
+    }
+
+    @Nullable
+    PlayerWrapper quit(UUID playerId) {
+        final PlayerWrapper session = this.sessions.remove(playerId);
+        if (session != null) {
+            releaseSlot(session);
+        }
+        return session;
+    }
+
+    private void releaseSlot(PlayerWrapper session) {
+        synchronized (this.slots) {
+            this.slots.clear(session.slot);
+        }
+    }
+
+    void changeWorld(Player player) {
+        final PlayerWrapper session = this.sessions.get(player.getUniqueId());
+        if (session != null) {
+            session.rebind(player);
+        }
+    }
+
+    PlayerWrapper getOrJoin(Player player) {
+        final PlayerWrapper session = this.sessions.get(player.getUniqueId());
+        return session == null ? join(player) : session;
+    }
+
+    @Nullable
+    PlayerWrapper getNullable(UUID playerId) {
+        return this.sessions.get(playerId);
+    }
+
+    Collection<PlayerWrapper> getAll() {
+        return this.view;
+    }
+
+    int size() {
+        return this.sessions.size();
+    }
+
+    void clear() {
+        this.sessions.clear();
+        synchronized (this.slots) {
+            this.slots.clear();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.flowpowered.math.vector.Vector3d;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A per-world spatial hash of every online {@link PlayerWrapper session},
+ * bucketed into chunk sized cells. Sessions are moved between cells as
+ * players move, so "who is near this position" only inspects the handful
+ * of cells overlapping the query radius instead of every player in the
+ * world. Positions are sampled into primitive fields and cells are keyed by
+ * primitive longs, so queries don't allocate. Cells also keep a count of
+ * the emitters (sessions wearing a trail) they contain.
+ *
+ * <p>Only used from the main thread.</p>
+ */
+final class SpatialIndex {
+
+    static final int CELL_SHIFT = 4;
+
+    static final class Cell {
+
+        final UUID world;
+        final List<PlayerWrapper> members = new ArrayList<>();
+        int emitters;
+
+        Cell(UUID world) {
+            this.world = world;
+        }
+    }
+
+    private final Map<UUID, CellMap> worlds = new HashMap<>();
+
+    static long cellKey(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    static int cellCoord(double coordinate) {
+        return (int) Math.floor(coordinate) >> CELL_SHIFT;
+    }
+
+    /**
+     * Moves the session to its new position, changing cells (or worlds) only
+     * when it crossed a cell boundary.
+     */
+    void update(PlayerWrapper session, UUID worldId, Vector3d position) {
+        session.position = position;
+        session.x = position.getX();
+        session.y = position.getY();
+        session.z = position.getZ();
+        final long key = cellKey(cellCoord(position.getX()), cellCoord(position.getZ()));
+        if (session.gridCell != null && key == session.gridCellKey && worldId.equals(session.gridWorld)) {
+            return;
+        }
+        remove(session);
+        final CellMap grid = this.worlds.computeIfAbsent(worldId, id -> new CellMap());
+        Cell cell = grid.get(key);
+        if (cell == null) {
+            cell = new Cell(worldId);
+            grid.put(key, cell);
+        }
+        cell.members.add(session);
+        if (session.gridEmitter) {
+            cell.emitters++;
+        }
+        session.gridWorld = worldId;
+        session.gridCellKey = key;
+        session.gridCell = cell;
+    }
+
+    void setEmitter(PlayerWrapper session, boolean emitter) {
+        if (session.gridEmitter == emitter) {
+            return;
+        }
+        session.gridEmitter = emitter;
+        final Cell cell = session.gridCell;
+        if (cell != null) {
+            cell.emitters += emitter ? 1 : -1;
+        }
+    }
+
+    void remove(PlayerWrapper session) {
+        final Cell cell = session.gridCell;
+        if (cell == null) {
+            return;
+        }
+        cell.members.remove(session);
+        if (session.gridEmitter) {
+            cell.emitters--;
+        }
+        if (cell.members.isEmpty()) {
+            final CellMap grid = this.worlds.get(session.gridWorld);
+            if (grid != null) {
+                grid.remove(session.gridCellKey);
+                if (grid.isEmpty()) {
+                    this.worlds.remove(session.gridWorld);
+                }
+            }
+        }
+        session.gridCell = null;
+        session.gridWorld = null;
+    }
+
+    /**
+     * Collects every session within {@code radius} of the position into the
+     * output list, which is cleared first. Returns the number of sessions
+     * collected.
+     */
+    int collectNearby(UUID worldId, double x, double y, double z, double radius, List<PlayerWrapper> out) {
+        out.clear();
+        final CellMap grid = this.worlds.get(worldId);
+        if (grid == null) {
+            return 0;
+        }
+        final double radiusSquared = radius * radius;
+        final int minX = cellCoord(x - radius);
+        final int maxX = cellCoord(x + radius);
+        final int minZ = cellCoord(z - radius);
+        final int maxZ = cellCoord(z + radius);
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+                final Cell cell = grid.get(cellKey(cellX, cellZ));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0, size = cell.members.size(); i < size; i++) {
+                    final PlayerWrapper member = cell.members.get(i);
+                    final double dx = member.x - x;
+                    final double dy = member.y - y;
+                    final double dz = member.z - z;
+                    if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                        out.add(member);
+                    }
+                }
+            }
+        }
+        return out.size();
+    }
+
+    int getWorldCount() {
+        return this.worlds.size();
+    }
+
+    int getCellCount() {
+        int cells = 0;
+        for (CellMap grid : this.worlds.values()) {
+            cells += grid.size();
+        }
+        return cells;
+    }
+
+    void clear() {
+        this.worlds.clear();
+    }
+}
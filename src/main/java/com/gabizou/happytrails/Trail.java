@@ -25,6 +25,7 @@
 package com.gabizou.happytrails;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.reflect.TypeToken;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
@@ -42,10 +43,14 @@ import org.spongepowered.api.data.persistence.InvalidDataException;
 import org.spongepowered.api.effect.particle.ParticleEffect;
 import org.spongepowered.api.effect.particle.ParticleOptions;
 import org.spongepowered.api.effect.particle.ParticleTypes;
-import org.spongepowered.api.entity.living.player.Player;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 @ConfigSerializable
 public class Trail implements CatalogType, DataSerializable {
@@ -55,32 +60,158 @@ public class Trail implements CatalogType, DataSerializable {
     @Setting private String name;
     @Setting int period = 5;
     @Setting private int radius = 10;
-    @Setting private ParticleEffect effect = ParticleEffect.builder()
-        .type(ParticleTypes.HEART)
-        .quantity(10)
-        .option(ParticleOptions.VELOCITY, Constants.DEFAULT_VELOCITY)
-        .option(ParticleOptions.SCALE, 1d)
-        .build();
-
-    // This is used for configurate.
+    @Setting private int priority = 0;
+    // Emit every this many blocks traveled instead of every period, zero to use the period
+    @Setting private double spacing = 0;
+    @Setting private TrailTrigger trigger = TrailTrigger.PERIODIC;
+    // Sorted by distance, read through the DataView like every other field
+    private List<LodTier> lod = ImmutableList.of();
+    @Setting private ParticleEffect effect;
+
+    // Built when registered, see TrailRegistry
+    @Nullable private transient TrailPayload payload;
+    // Assigned by TrailRegistry#getHandle
+    transient int handle = EmitterTable.NONE;
+    @Nullable private transient TrailData.Immutable immutableData;
+    private transient double[] lodDistancesSquared = new double[0];
+    private transient double[] lodMultipliers = new double[0];
+    // Zero until computed, trails aren't modified once built
+    private transient int hash;
+
+    // This is used for configurate, the default effect is only built here so
+    // trails can be constructed before Sponge's builders are available.
     @SuppressWarnings("unused")
     Trail() {
         this.id = "";
         this.name = "";
-
+        this.effect = ParticleEffect.builder()
+            .type(ParticleTypes.HEART)
+            .quantity(10)
+            .option(ParticleOptions.VELOCITY, Constants.DEFAULT_VELOCITY)
+            .option(ParticleOptions.SCALE, 1d)
+            .build();
     }
 
     Trail(String id, String name, int period, int radius, ParticleEffect effect) {
+        this(id, name, period, radius, 0, effect);
+    }
+
+    Trail(String id, String name, int period, int radius, int priority, ParticleEffect effect) {
+        this(id, name, period, radius, priority, 0, effect);
+    }
+
+    Trail(String id, String name, int period, int radius, int priority, double spacing, ParticleEffect effect) {
+        this(id, name, period, radius, priority, spacing, TrailTrigger.PERIODIC, effect);
+    }
+
+    Trail(String id, String name, int period, int radius, int priority, double spacing, TrailTrigger trigger, ParticleEffect effect) {
+        this(id, name, period, radius, priority, spacing, trigger, ImmutableList.of(), effect);
+    }
+
+    Trail(String id, String name, int period, int radius, int priority, double spacing, TrailTrigger trigger, List<LodTier> lod,
+        ParticleEffect effect) {
         this.id = id;
         this.name = name;
         this.period = period;
         this.radius = radius;
+        this.priority = priority;
+        this.spacing = spacing;
+        this.trigger = trigger;
         this.effect = effect;
+        this.lod = ImmutableList.sortedCopyOf(Comparator.comparingDouble(LodTier::getDistance), lod);
+        this.lodDistancesSquared = new double[this.lod.size()];
+        this.lodMultipliers = new double[this.lod.size()];
+        for (int i = 0; i < this.lod.size(); i++) {
+            this.lodDistancesSquared[i] = this.lod.get(i).distance * this.lod.get(i).distance;
+            this.lodMultipliers[i] = this.lod.get(i).multiplier;
+        }
+    }
+
+
+    ParticleEffect getEffect() {
+        return this.effect;
+    }
+
+    int getQuantity() {
+        return getPayload().quantity;
+    }
+
+    /**
+     * Gets the payload, the first call interns the effect so trails with the
+     * same effect share it. The registry calls this when registering.
+     */
+    TrailPayload getPayload() {
+        TrailPayload payload = this.payload;
+        if (payload == null) {
+            payload = this.payload = TrailRegistry.getInstance().getEffectPool().getPayload(this.effect);
+            this.effect = payload.effect;
+            this.hash = 0;
+        }
+        return payload;
+    }
+
+    /**
+     * Gets the shared immutable data holding this trail.
+     */
+    TrailData.Immutable getImmutableData() {
+        TrailData.Immutable data = this.immutableData;
+        if (data == null) {
+            data = this.immutableData = new TrailData.Immutable(this);
+        }
+        return data;
+    }
+
+    int getRadius() {
+        return this.radius;
+    }
+
+    int getPriority() {
+        return this.priority;
+    }
+
+    double getSpacing() {
+        return this.spacing;
     }
 
+    List<LodTier> getLod() {
+        return this.lod;
+    }
 
-    void playEffect(Player player) {
-        player.getWorld().spawnParticles(this.effect, player.getLocation().getPosition(), this.radius);
+    boolean hasLod() {
+        return this.lodMultipliers.length > 0;
+    }
+
+    /**
+     * Scales the quantity for a viewer at the given squared distance by the
+     * farthest tier the viewer is beyond, the payload variant sent is picked
+     * from the result.
+     */
+    int getLodQuantity(int quantity, double distanceSquared) {
+        for (int i = this.lodMultipliers.length - 1; i >= 0; i--) {
+            if (distanceSquared >= this.lodDistancesSquared[i]) {
+                return Math.max(1, (int) Math.round(quantity * this.lodMultipliers[i]));
+            }
+        }
+        return quantity;
+    }
+
+    TrailTrigger getTrigger() {
+        return this.trigger;
+    }
+
+    /**
+     * Spacing only applies to periodic trails.
+     */
+    boolean isDistanceSampled() {
+        return this.trigger == TrailTrigger.PERIODIC && this.spacing > 0;
+    }
+
+    /**
+     * Whether the particle spawner has to visit this trail every period,
+     * distance sampled and event triggered trails are never scheduled.
+     */
+    boolean isPolled() {
+        return this.trigger == TrailTrigger.PERIODIC && this.spacing <= 0;
     }
 
     @Override
@@ -93,6 +224,17 @@ public class Trail implements CatalogType, DataSerializable {
         return this.name;
     }
 
+    /**
+     * Whether this trail would look and behave exactly like the other one,
+     * unlike {@link #equals(Object)} this includes the id, name and priority.
+     */
+    boolean isSameDefinition(Trail other) {
+        return this.id.equals(other.id)
+               && this.name.equals(other.name)
+               && this.priority == other.priority
+               && equals(other);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -102,14 +244,22 @@ public class Trail implements CatalogType, DataSerializable {
             return false;
         }
         Trail trail = (Trail) o;
-        return this.period == trail.period
+        return hashCode() == trail.hashCode()
+               && this.period == trail.period
                && this.radius == trail.radius
+               && Double.compare(this.spacing, trail.spacing) == 0
+               && this.trigger == trail.trigger
+               && this.lod.equals(trail.lod)
                && Objects.equals(this.effect, trail.effect);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.effect, this.period, this.radius);
+        int hash = this.hash;
+        if (hash == 0) {
+            hash = this.hash = Objects.hash(this.effect, this.period, this.radius, this.spacing, this.trigger, this.lod);
+        }
+        return hash;
     }
 
     @Override
@@ -118,6 +268,10 @@ public class Trail implements CatalogType, DataSerializable {
             .add("effect", this.effect)
             .add("period", this.period)
             .add("radius", this.radius)
+            .add("priority", this.priority)
+            .add("spacing", this.spacing)
+            .add("trigger", this.trigger)
+            .add("lod", this.lod)
             .add("id", getId())
             .add("name", getName())
             .toString();
@@ -147,9 +301,61 @@ public class Trail implements CatalogType, DataSerializable {
             .set(Constants.NAME_QUERY, this.name)
             .set(Constants.PERIOD, this.period)
             .set(Constants.RADIUS, this.radius)
+            .set(Constants.PRIORITY, this.priority)
+            .set(Constants.SPACING, this.spacing)
+            .set(Constants.TRIGGER, this.trigger.name())
+            .set(Constants.LOD, this.lod.stream()
+                .map(tier -> DataContainer.createNew()
+                    .set(Constants.LOD_DISTANCE, tier.distance)
+                    .set(Constants.LOD_MULTIPLIER, tier.multiplier))
+                .collect(Collectors.toList()))
             .set(Constants.PARTICLE_EFFECT, this.effect);
     }
 
+    /**
+     * Viewers at least {@code distance} blocks away get the quantity scaled
+     * by {@code multiplier}.
+     */
+    static final class LodTier {
+
+        final double distance;
+        final double multiplier;
+
+        LodTier(double distance, double multiplier) {
+            this.distance = distance;
+            this.multiplier = multiplier;
+        }
+
+        double getDistance() {
+            return this.distance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final LodTier tier = (LodTier) o;
+            return Double.compare(this.distance, tier.distance) == 0 && Double.compare(this.multiplier, tier.multiplier) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.distance, this.multiplier);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                .add("distance", this.distance)
+                .add("multiplier", this.multiplier)
+                .toString();
+        }
+    }
+
     public static final class Builder extends AbstractDataBuilder<Trail> implements DataBuilder<Trail> {
 
         Builder() {
@@ -166,7 +372,27 @@ public class Trail implements CatalogType, DataSerializable {
             final ParticleEffect effect = container.getSerializable(Constants.PARTICLE_EFFECT, ParticleEffect.class).get();
             final int period = container.getInt(Constants.PERIOD).orElse(10);
             final int radius = container.getInt(Constants.RADIUS).orElse(30);
-            return Optional.of(new Trail(id, name, period, radius, effect));
+            final int priority = container.getInt(Constants.PRIORITY).orElse(0);
+            final double spacing = container.getDouble(Constants.SPACING).orElse(0d);
+            TrailTrigger trigger = TrailTrigger.PERIODIC;
+            final Optional<String> triggerName = container.getString(Constants.TRIGGER);
+            if (triggerName.isPresent()) {
+                try {
+                    trigger = TrailTrigger.valueOf(triggerName.get());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidDataException("Unknown trail trigger: " + triggerName.get(), e);
+                }
+            }
+            final List<LodTier> lod = new ArrayList<>();
+            for (DataView tier : container.getViewList(Constants.LOD).orElse(ImmutableList.of())) {
+                final double distance = tier.getDouble(Constants.LOD_DISTANCE).orElse(0d);
+                final double multiplier = tier.getDouble(Constants.LOD_MULTIPLIER).orElse(1d);
+                if (distance <= 0 || multiplier <= 0 || multiplier > 1) {
+                    throw new InvalidDataException("Level of detail tiers need a positive distance and a multiplier up to 1");
+                }
+                lod.add(new LodTier(distance, multiplier));
+            }
+            return Optional.of(new Trail(id, name, period, radius, priority, spacing, trigger, lod, effect));
         }
     }
 }
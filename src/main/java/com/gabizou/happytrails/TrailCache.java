@@ -0,0 +1,280 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.flowpowered.math.vector.Vector3d;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.spongepowered.api.CatalogType;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.effect.particle.ParticleEffect;
+import org.spongepowered.api.effect.particle.ParticleOption;
+import org.spongepowered.api.effect.particle.ParticleType;
+import org.spongepowered.api.util.Color;
+import org.spongepowered.api.util.Direction;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled binary copy of the validated trails of the config, keyed by the
+ * hash of the config file. As long as the config is unchanged the trails are
+ * decoded straight from the cache in a single read instead of being
+ * deserialized through Configurate and the {@code DataManager}.
+ *
+ * <p>Only effects whose options are numbers, vectors, colors, directions or
+ * catalog types can be compiled, any other option leaves the cache unwritten
+ * and the config is parsed as usual.</p>
+ */
+final class TrailCache {
+
+    private static final int MAGIC = 0x48545243;
+    // Bump whenever the layout changes, older caches are then ignored
+    private static final int FORMAT_VERSION = 4;
+
+    private static final byte TAG_INT = 0;
+    private static final byte TAG_DOUBLE = 1;
+    private static final byte TAG_VECTOR = 2;
+    private static final byte TAG_COLOR = 3;
+    private static final byte TAG_DIRECTION = 4;
+    private static final byte TAG_CATALOG = 5;
+
+    private final Path file;
+
+    TrailCache(Path file) {
+        this.file = file;
+    }
+
+    static HashCode hash(byte[] config) {
+        return Hashing.sha256().hashBytes(config);
+    }
+
+    /**
+     * Decodes the cached trails if the cache was compiled from a config with
+     * the given hash.
+     */
+    @Nullable
+    synchronized List<Trail> read(HashCode hash) {
+        if (!Files.isRegularFile(this.file)) {
+            return null;
+        }
+        try {
+            // Read onto the heap, a live mapping would block replacing the file
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.file));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final byte[] expected = hash.asBytes();
+            final byte[] cached = new byte[buffer.get() & 0xFF];
+            buffer.get(cached);
+            if (!HashCode.fromBytes(cached).equals(HashCode.fromBytes(expected))) {
+                return null;
+            }
+            final int count = buffer.getInt();
+            final List<Trail> trails = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final Trail trail = readTrail(buffer);
+                if (trail == null) {
+                    return null;
+                }
+                trails.add(trail);
+            }
+            return trails;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            HappyTrails.getInstance().logger.warn("Could not read the trail cache, parsing the config instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Compiles the valid trails into the cache, replacing the old cache in a
+     * single move.
+     */
+    synchronized void write(HashCode hash, List<Trail> trails) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            final byte[] hashBytes = hash.asBytes();
+            out.writeByte(hashBytes.length);
+            out.write(hashBytes);
+            final List<Trail> valid = new ArrayList<>(trails.size());
+            for (Trail trail : trails) {
+                if (trail.validate()) {
+                    valid.add(trail);
+                }
+            }
+            out.writeInt(valid.size());
+            for (Trail trail : valid) {
+                if (!writeTrail(out, trail)) {
+                    Files.deleteIfExists(this.file);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            HappyTrails.getInstance().logger.warn("Could not compile the trail cache", e);
+            return;
+        }
+        try {
+            final Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            HappyTrails.getInstance().logger.warn("Could not write the trail cache", e);
+        }
+    }
+
+    private static boolean writeTrail(DataOutputStream out, Trail trail) throws IOException {
+        writeString(out, trail.getId());
+        writeString(out, trail.getName());
+        out.writeInt(trail.period);
+        out.writeInt(trail.getRadius());
+        out.writeInt(trail.getPriority());
+        out.writeDouble(trail.getSpacing());
+        out.writeByte(trail.getTrigger().ordinal());
+        out.writeByte(trail.getLod().size());
+        for (Trail.LodTier tier : trail.getLod()) {
+            out.writeDouble(tier.distance);
+            out.writeDouble(tier.multiplier);
+        }
+        final ParticleEffect effect = trail.getEffect();
+        writeString(out, effect.getType().getId());
+        final Map<ParticleOption<?>, Object> options = effect.getOptions();
+        out.writeInt(options.size());
+        for (Map.Entry<ParticleOption<?>, Object> entry : options.entrySet()) {
+            writeString(out, entry.getKey().getId());
+            final Object value = entry.getValue();
+            if (value instanceof Integer) {
+                out.writeByte(TAG_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Vector3d) {
+                final Vector3d vector = (Vector3d) value;
+                out.writeByte(TAG_VECTOR);
+                out.writeDouble(vector.getX());
+                out.writeDouble(vector.getY());
+                out.writeDouble(vector.getZ());
+            } else if (value instanceof Color) {
+                out.writeByte(TAG_COLOR);
+                out.writeInt(((Color) value).getRgb());
+            } else if (value instanceof Direction) {
+                out.writeByte(TAG_DIRECTION);
+                writeString(out, ((Direction) value).name());
+            } else if (value instanceof CatalogType) {
+                out.writeByte(TAG_CATALOG);
+                writeString(out, ((CatalogType) value).getId());
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Trail readTrail(ByteBuffer buffer) {
+        final String id = readString(buffer);
+        final String name = readString(buffer);
+        final int period = buffer.getInt();
+        final int radius = buffer.getInt();
+        final int priority = buffer.getInt();
+        final double spacing = buffer.getDouble();
+        final TrailTrigger trigger = TrailTrigger.values()[buffer.get()];
+        final int tierCount = buffer.get() & 0xFF;
+        final List<Trail.LodTier> lod = new ArrayList<>(tierCount);
+        for (int i = 0; i < tierCount; i++) {
+            lod.add(new Trail.LodTier(buffer.getDouble(), buffer.getDouble()));
+        }
+        final ParticleType type = Sponge.getRegistry().getType(ParticleType.class, readString(buffer)).orElse(null);
+        if (type == null) {
+            return null;
+        }
+        final ParticleEffect.Builder builder = ParticleEffect.builder().type(type);
+        final int optionCount = buffer.getInt();
+        for (int i = 0; i < optionCount; i++) {
+            final ParticleOption<?> option = Sponge.getRegistry().getType(ParticleOption.class, readString(buffer)).orElse(null);
+            final Object value = readValue(buffer, option);
+            if (option == null || value == null) {
+                return null;
+            }
+            option(builder, option, value);
+        }
+        return new Trail(id, name, period, radius, priority, spacing, trigger, lod, builder.build());
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Object readValue(ByteBuffer buffer, @Nullable ParticleOption<?> option) {
+        switch (buffer.get()) {
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_VECTOR:
+                return new Vector3d(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            case TAG_COLOR:
+                return Color.ofRgb(buffer.getInt());
+            case TAG_DIRECTION:
+                return Direction.valueOf(readString(buffer));
+            case TAG_CATALOG:
+                final String id = readString(buffer);
+                if (option == null || !CatalogType.class.isAssignableFrom(option.getValueType())) {
+                    return null;
+                }
+                return Sponge.getRegistry().getType((Class<? extends CatalogType>) option.getValueType(), id).orElse(null);
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void option(ParticleEffect.Builder builder, ParticleOption<V> option, Object value) {
+        builder.option(option, (V) value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
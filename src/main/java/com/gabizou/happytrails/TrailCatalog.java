@@ -0,0 +1,248 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.google.common.reflect.TypeToken;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A directory of trail files, each holding either a single trail or a pack
+ * of them under {@code trails}. Scanning only reads the id and name of each
+ * trail, the effect is deserialized the first time the trail is resolved
+ * through {@link TrailRegistry#getById(String)}.
+ *
+ * <p>An index recording the modification time and trails of every file is
+ * kept next to the directory, a scan only reparses files whose modification
+ * time changed since the index was written.</p>
+ */
+final class TrailCatalog {
+
+    private static final String FILE_EXTENSION = ".conf";
+    private static final TypeToken<Trail> TRAIL_TOKEN = TypeToken.of(Trail.class);
+
+    static final class Entry {
+
+        final String id;
+        final String name;
+        final String permission;
+        final Path file;
+
+        Entry(String id, String name, Path file) {
+            this.id = id.toLowerCase(Locale.ENGLISH);
+            this.name = name;
+            this.permission = "happytrails.trail." + (this.id.contains(":") ? this.id.split(":")[1] : this.id);
+            this.file = file;
+        }
+    }
+
+    static final class Scan {
+
+        final List<Entry> entries;
+        final Set<Path> changedFiles;
+
+        Scan(List<Entry> entries, Set<Path> changedFiles) {
+            this.entries = entries;
+            this.changedFiles = changedFiles;
+        }
+    }
+
+    private static final class FileState {
+
+        final long modified;
+        final List<Entry> entries;
+
+        FileState(long modified, List<Entry> entries) {
+            this.modified = modified;
+            this.entries = entries;
+        }
+    }
+
+    private final Path directory;
+    private final HoconConfigurationLoader indexLoader;
+    private Map<Path, FileState> files = new HashMap<>();
+    private boolean indexLoaded;
+    @Nullable private Scan last;
+
+    TrailCatalog(Path directory, Path index) {
+        this.directory = directory;
+        this.indexLoader = HoconConfigurationLoader.builder().setPath(index).build();
+    }
+
+    /**
+     * Scans the directory, reparsing only files whose modification time
+     * changed, and writes the updated index.
+     */
+    synchronized Scan scan() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            Files.createDirectories(this.directory);
+        }
+        if (!this.indexLoaded) {
+            loadIndex();
+            this.indexLoaded = true;
+        }
+        final Map<Path, FileState> scanned = new HashMap<>();
+        final Set<Path> changed = new HashSet<>();
+        final List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + FILE_EXTENSION)) {
+            for (Path file : stream) {
+                final long modified = Files.getLastModifiedTime(file).toMillis();
+                FileState state = this.files.get(file);
+                if (state == null || state.modified != modified) {
+                    try {
+                        state = new FileState(modified, readEntries(file));
+                        changed.add(file);
+                    } catch (IOException e) {
+                        // Keep whatever the file held before until it parses again
+                        HappyTrails.getInstance().logger.warn("Could not read trail file " + file.getFileName(), e);
+                        if (state == null) {
+                            continue;
+                        }
+                    }
+                }
+                scanned.put(file, state);
+                entries.addAll(state.entries);
+            }
+        }
+        for (Path file : this.files.keySet()) {
+            if (!scanned.containsKey(file)) {
+                changed.add(file);
+            }
+        }
+        this.files = scanned;
+        if (!changed.isEmpty()) {
+            saveIndex();
+        }
+        this.last = new Scan(entries, Collections.emptySet());
+        return new Scan(entries, changed);
+    }
+
+    /**
+     * Gets the entries of the last successful scan, with no changed files.
+     */
+    @Nullable
+    synchronized Scan getLastScan() {
+        return this.last;
+    }
+
+    private List<Entry> readEntries(Path file) throws IOException {
+        final ConfigurationNode root = parse(file);
+        final List<Entry> entries = new ArrayList<>();
+        for (ConfigurationNode node : getTrailNodes(root)) {
+            final String id = node.getNode("id").getString();
+            final String name = node.getNode("name").getString();
+            if (id == null || name == null || !id.contains(":")) {
+                HappyTrails.getInstance().logger.warn("Skipping trail without a valid id and name in " + file.getFileName());
+                continue;
+            }
+            entries.add(new Entry(id, name, file));
+        }
+        return entries;
+    }
+
+    private static List<? extends ConfigurationNode> getTrailNodes(ConfigurationNode root) {
+        if (!root.getNode("id").isVirtual()) {
+            return Collections.singletonList(root);
+        }
+        return root.getNode("trails").getChildrenList();
+    }
+
+    private static ConfigurationNode parse(Path file) throws IOException {
+        return HoconConfigurationLoader.builder().setPath(file).build().load();
+    }
+
+    /**
+     * Deserializes the trail for the entry, returns null if it can't be. The
+     * file is parsed again, scans don't keep parsed files in memory.
+     */
+    @Nullable
+    Trail resolve(Entry entry) {
+        try {
+            for (ConfigurationNode node : getTrailNodes(parse(entry.file))) {
+                final String id = node.getNode("id").getString();
+                if (id != null && id.equalsIgnoreCase(entry.id)) {
+                    final Trail trail = node.getValue(TRAIL_TOKEN);
+                    return trail != null && trail.validate() ? trail : null;
+                }
+            }
+        } catch (IOException | ObjectMappingException e) {
+            HappyTrails.getInstance().logger.warn("Could not load trail " + entry.id + " from " + entry.file.getFileName(), e);
+        }
+        return null;
+    }
+
+    private void loadIndex() {
+        try {
+            final CommentedConfigurationNode index = this.indexLoader.load();
+            for (Map.Entry<Object, ? extends ConfigurationNode> fileNode : index.getNode("files").getChildrenMap().entrySet()) {
+                final Path file = this.directory.resolve(String.valueOf(fileNode.getKey()));
+                final List<Entry> entries = new ArrayList<>();
+                for (ConfigurationNode trail : fileNode.getValue().getNode("trails").getChildrenList()) {
+                    entries.add(new Entry(trail.getNode("id").getString(""), trail.getNode("name").getString(""), file));
+                }
+                this.files.put(file, new FileState(fileNode.getValue().getNode("modified").getLong(), entries));
+            }
+        } catch (IOException e) {
+            HappyTrails.getInstance().logger.warn("Could not read the trail index, rescanning every trail file", e);
+            this.files = new HashMap<>();
+        }
+    }
+
+    private void saveIndex() {
+        final CommentedConfigurationNode index = this.indexLoader.createEmptyNode();
+        index.setComment("Generated by HappyTrails, lists the trails found in each trail file");
+        for (Map.Entry<Path, FileState> file : this.files.entrySet()) {
+            final ConfigurationNode fileNode = index.getNode("files", file.getKey().getFileName().toString());
+            fileNode.getNode("modified").setValue(file.getValue().modified);
+            for (Entry entry : file.getValue().entries) {
+                final ConfigurationNode trail = fileNode.getNode("trails").getAppendedNode();
+                trail.getNode("id").setValue(entry.id);
+                trail.getNode("name").setValue(entry.name);
+                trail.getNode("permission").setValue(entry.permission);
+            }
+        }
+        try {
+            this.indexLoader.save(index);
+        } catch (IOException e) {
+            HappyTrails.getInstance().logger.warn("Could not save the trail index", e);
+        }
+    }
+}
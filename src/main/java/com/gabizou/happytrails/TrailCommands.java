@@ -44,11 +44,19 @@ import org.spongepowered.api.text.format.TextColors;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import static org.spongepowered.api.command.args.GenericArguments.enumValue;
 import static org.spongepowered.api.command.args.GenericArguments.firstParsing;
+import static org.spongepowered.api.command.args.GenericArguments.optional;
 
 class TrailCommands {
     private static final String INDENT = "    ";
@@ -66,10 +74,14 @@ class TrailCommands {
         nonFlagChildren.register(getSetTrailCommand(), "set", "setTrail", "settrail");
         nonFlagChildren.register(getRemoveTrailCommand(), "reset", "resetTrail", "resetTrail");
         nonFlagChildren.register(getAddTrailCommand(), "add", "addTrail", "create", "createTrail");
+        nonFlagChildren.register(getStatsCommand(), "stats", "statistics");
+        nonFlagChildren.register(getVisibilityCommand(), "visibility", "show");
         return CommandSpec.builder()
             .description(Text.of("HappyTrails command"))
             .extendedDescription(Text.of("commands:\n",
-                INDENT, title("set"), LONG_INDENT, "set a trail to you as a player"))
+                INDENT, title("set"), LONG_INDENT, "set a trail to you as a player\n",
+                INDENT, title("visibility"), LONG_INDENT, "choose whose trails you see: all, friends, own or none\n",
+                INDENT, title("stats"), LONG_INDENT, "shows particle spawner statistics"))
             .arguments(firstParsing(nonFlagChildren))
             .executor(nonFlagChildren)
             .build();
@@ -104,6 +116,27 @@ class TrailCommands {
             .build();
     }
 
+    private static CommandSpec getVisibilityCommand() {
+        return CommandSpec.builder()
+            .permission("happytrails.command.visibility")
+            .description(Text.of("Chooses whose trails you see"))
+            .arguments(optional(enumValue(Text.of("visibility"), TrailVisibility.class)))
+            .executor((src, args) -> {
+                if (!(src instanceof Player)) {
+                    return CommandResult.empty();
+                }
+                final Player player = (Player) src;
+                final Optional<TrailVisibility> visibility = args.getOne("visibility");
+                if (visibility.isPresent()) {
+                    HappyTrails.getInstance().setVisibility(player, visibility.get());
+                }
+                src.sendMessage(Text.of(TextColors.AQUA, "Showing trails: ",
+                    HappyTrails.getInstance().getVisibility(player).name().toLowerCase(Locale.ENGLISH)));
+                return CommandResult.success();
+            })
+            .build();
+    }
+
     private static CommandSpec getAddTrailCommand() {
         return CommandSpec.builder()
             .permission("happytrails.command.add")
@@ -128,6 +161,110 @@ class TrailCommands {
 
     }
 
+    private static final int NET_TOP = 5;
+
+    private static CommandSpec getNetStatsCommand() {
+        return CommandSpec.builder()
+            .permission("happytrails.command.stats")
+            .description(Text.of("Shows the estimated particle bandwidth"))
+            .executor((src, args) -> {
+                final HappyTrails plugin = HappyTrails.getInstance();
+                final NetworkAccounting network = plugin.getNetwork();
+                src.sendMessage(Text.of(TextColors.AQUA, "HappyTrails bandwidth (estimated)"));
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Sent ", network.getTotalPackets(), " packets, ",
+                    network.getTotalBytes() / 1024, " KiB, viewer cap thinned ", network.getThinned(), " and dropped ",
+                    network.getDropped(), " emissions"));
+                final TrailRegistry registry = TrailRegistry.getInstance();
+                // Counted per handle, fallback handles resolve to the trail that now serves them
+                final Map<String, long[]> byId = new HashMap<>();
+                for (int handle = 0; handle < network.getTrailCount(); handle++) {
+                    if (network.getTrailPackets(handle) > 0) {
+                        final long[] sent = byId.computeIfAbsent(registry.getByHandle(handle).getId(), id -> new long[2]);
+                        sent[0] += network.getTrailPackets(handle);
+                        sent[1] += network.getTrailBytes(handle);
+                    }
+                }
+                final List<Map.Entry<String, long[]>> trails = new ArrayList<>(byId.entrySet());
+                trails.sort(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[1]).reversed());
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Trails by bytes sent:"));
+                for (Map.Entry<String, long[]> entry : trails.subList(0, Math.min(NET_TOP, trails.size()))) {
+                    src.sendMessage(Text.of(INDENT_TEXT, entry.getKey(), ": ",
+                        entry.getValue()[0], " packets, ", entry.getValue()[1] / 1024, " KiB"));
+                }
+                final List<PlayerWrapper> sessions = new ArrayList<>(plugin.getSessions().getAll());
+                sessions.sort(Comparator.comparingLong((PlayerWrapper session) -> session.netSentBytes).reversed());
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Emitters by bytes sent:"));
+                for (PlayerWrapper session : sessions.subList(0, Math.min(NET_TOP, sessions.size()))) {
+                    if (session.netSentBytes > 0) {
+                        src.sendMessage(Text.of(INDENT_TEXT, getName(session), ": ", session.netSentPackets, " packets, ",
+                            session.netSentBytes / 1024, " KiB"));
+                    }
+                }
+                sessions.sort(Comparator.comparingLong((PlayerWrapper session) -> session.netReceivedBytes).reversed());
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Viewers by bytes received:"));
+                for (PlayerWrapper session : sessions.subList(0, Math.min(NET_TOP, sessions.size()))) {
+                    if (session.netReceivedBytes > 0) {
+                        src.sendMessage(Text.of(INDENT_TEXT, getName(session), ": ", session.netReceivedPackets, " packets, ",
+                            session.netReceivedBytes / 1024, " KiB"));
+                    }
+                }
+                return CommandResult.success();
+            })
+            .build();
+    }
+
+    private static String getName(PlayerWrapper session) {
+        final Player player = session.getPlayer();
+        return player == null ? session.playerId.toString() : player.getName();
+    }
+
+    private static CommandSpec getStatsCommand() {
+        return CommandSpec.builder()
+            .permission("happytrails.command.stats")
+            .description(Text.of("Shows particle spawner statistics"))
+            .child(getNetStatsCommand(), "net", "network")
+            .executor((src, args) -> {
+                final HappyTrails plugin = HappyTrails.getInstance();
+                final TrailStatistics stats = plugin.getStatistics();
+                src.sendMessage(Text.of(TextColors.AQUA, "HappyTrails statistics"));
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Sessions: ", plugin.getSessions().size(),
+                    ", emitters: ", plugin.getEmitters().size(), " (capacity ", plugin.getEmitters().getCapacity(), ")",
+                    ", scheduled: ", plugin.getScheduler().getScheduledCount(),
+                    ", occupied cells: ", plugin.getSpatialIndex().getCellCount(), " in ", plugin.getSpatialIndex().getWorldCount(), " worlds"));
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Emissions per tick over the last ", stats.getSampledTicks(), " ticks: min ",
+                    stats.getMinEmissionsPerTick(), ", max ", stats.getMaxEmissionsPerTick(),
+                    String.format(", mean %.2f, stddev %.2f", stats.getMeanEmissionsPerTick(), stats.getEmissionsStdDev())));
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Emitted: ", stats.getTotalEmissions(), ", culled without viewers: ",
+                    stats.getCulledEmissions(), String.format(" (%.1f%%), mean viewers per emission %.2f",
+                        stats.getCulledRatio() * 100, stats.getMeanViewersPerEmission())));
+                final ParticleBudget budget = plugin.getBudget();
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, String.format("Tick time %.1fms, budget scale %.2f, throttled emissions: ",
+                    budget.getTickMillis(), budget.getScale()), stats.getThrottledEmissions(),
+                    ", limited by crowd density: ", stats.getDensityLimitedEmissions(),
+                    ", idle suspensions: ", stats.getIdleSuspensions()));
+                final SelectionWriter selections = plugin.getSelections();
+                src.sendMessage(Text.of(LIST_ITEM_TEXT, "Trail selections: ", selections.getChanges(), " changes, ",
+                    selections.getWrites(), " written, ", selections.getWritesSaved(), " writes saved, ",
+                    selections.getPendingCount(), " pending"));
+                final AllocationProbe allocations = plugin.getAllocationProbe();
+                if (allocations.getSampledTicks() > 0) {
+                    src.sendMessage(Text.of(LIST_ITEM_TEXT, "Spawner allocations: last tick ", allocations.getLastTickBytes(),
+                        " bytes, max ", allocations.getMaxTickBytes(), " bytes, ", allocations.getAllocatingTicks(), " of ",
+                        allocations.getSampledTicks(), " ticks allocated"));
+                }
+                final PhaseBalancer balancer = plugin.getPhaseBalancer();
+                final int maxInterval = balancer.getMaxInterval();
+                for (int interval = 2; interval <= maxInterval; interval++) {
+                    final int[] counts = balancer.getPhaseCounts(interval);
+                    if (counts != null) {
+                        src.sendMessage(Text.of(INDENT_TEXT, "Every ", interval, " ticks, emitters per phase: ", Arrays.toString(counts)));
+                    }
+                }
+                return CommandResult.success();
+            })
+            .build();
+    }
+
     private static Text title(String title) {
         return Text.of(TextColors.BLUE, title);
     }
@@ -149,14 +286,27 @@ class TrailCommands {
 
             // Try
             GameRegistry registry = Sponge.getRegistry();
-            Optional<? extends CatalogType> catalogType = registry.getType(this.type, arg);
-            if (!catalogType.isPresent() && !arg.contains(":")) {
+            Optional<? extends CatalogType> catalogType;
+            if (this.type == Trail.class) {
+                // The trail index resolves bare and namespaced ids in one lookup
+                catalogType = TrailRegistry.getInstance().getById(arg);
+            } else {
+                catalogType = registry.getType(this.type, arg);
+            }
+            if (!catalogType.isPresent() && this.type != Trail.class && !arg.contains(":")) {
                 catalogType = registry.getType(this.type, "minecraft:" + arg);
                 if (!catalogType.isPresent()) {
                     catalogType = registry.getType(this.type, "happytrails:" + arg);
                 }
             }
 
+            if (this.type == Trail.class) {
+                if (catalogType.isPresent() && HappyTrails.getInstance().getPermissionCache()
+                    .isPermitted(source, this.permissionPrefix, catalogType.get().getId().toLowerCase(Locale.ENGLISH))) {
+                    return catalogType.get();
+                }
+                throw args.createError(Text.of(TextColors.RED, ""));
+            }
             final String trimmedId = catalogType
                 .map(trail -> trail.getId().contains(":") ? trail.getId().split(":")[1] : trail.getId())
                 .orElse("");
@@ -171,20 +321,34 @@ class TrailCommands {
         public List<String> complete(CommandSource src, CommandArgs args, CommandContext context) {
             try {
                 String arg = args.peek().toLowerCase();
-                return Sponge.getRegistry().getAllOf(this.type).stream()
-                    .filter(x ->
-                        x.getId().startsWith(arg)
-                        || x.getId().startsWith(Constants.MOD_ID + ":" + arg)
+                if (this.type == Trail.class) {
+                    final List<String> ids = new ArrayList<>();
+                    TrailRegistry.getInstance().getSnapshot().index.complete(arg, ids);
+                    final PermissionCache permissions = HappyTrails.getInstance().getPermissionCache();
+                    ids.removeIf(id -> !permissions.isPermitted(src, this.permissionPrefix, id));
+                    return ids;
+                }
+                return getIds().stream()
+                    .filter(id ->
+                        id.startsWith(arg)
+                        || id.startsWith(Constants.MOD_ID + ":" + arg)
                     )
-                    .filter(x -> {
-                        final String trimmedId = x.getId().contains(":") ? x.getId().split(":")[1] : x.getId();
+                    .filter(id -> {
+                        final String trimmedId = id.contains(":") ? id.split(":")[1] : id;
                         return src.hasPermission(this.permissionPrefix + trimmedId);
                     })
-                    .map(CatalogType::getId)
                     .collect(Collectors.toList());
             } catch (Exception e) {
-                return Sponge.getRegistry().getAllOf(this.type).stream().map(CatalogType::getId).collect(Collectors.toList());
+                return getIds();
+            }
+        }
+
+        private List<String> getIds() {
+            if (this.type == Trail.class) {
+                // Includes the catalog trails that haven't been resolved yet
+                return TrailRegistry.getInstance().getSnapshot().ids;
             }
+            return Sponge.getRegistry().getAllOf(this.type).stream().map(CatalogType::getId).collect(Collectors.toList());
         }
     }
 
@@ -41,19 +41,50 @@ class TrailConfig {
 
     static final TypeToken<TrailConfig> TYPE_TOKEN = new TypeToken<TrailConfig>() {};
 
-    @Setting List<Trail> trails = generateDefaultList();
+    @Setting List<Trail> trails;
 
     @Setting String defaultTrail = Constants.DEFAULT_TRAIL_ID;
 
+    @Setting Scheduling scheduling = new Scheduling();
 
-    private List<Trail> generateDefaultList() {
+    @Setting Culling culling = new Culling();
+
+    @Setting Budget budget = new Budget();
+
+    @Setting Density density = new Density();
+
+    @Setting Reloading reloading = new Reloading();
+
+    @Setting Commands commands = new Commands();
+
+    @Setting Persistence persistence = new Persistence();
+
+    @Setting Movement movement = new Movement();
+
+    @Setting Network network = new Network();
+
+    @Setting Debug debug = new Debug();
+
+
+    TrailConfig() {
+        this(generateDefaultList());
+    }
+
+    /**
+     * Creates a config holding the given trails instead of the default ones,
+     * which can only be built once Sponge is up.
+     */
+    TrailConfig(List<Trail> trails) {
+        this.trails = trails;
+    }
+
+    private static List<Trail> generateDefaultList() {
         final ArrayList<Trail> trails = new ArrayList<>();
         trails.add(new Trail(Constants.HEARTS_ID, Constants.HEARTS_NAME, 10, 30, ParticleEffect.builder()
         .type(ParticleTypes.HEART)
             .quantity(7)
             .option(ParticleOptions.VELOCITY, Constants.DEFAULT_VELOCITY)
             .build()));
-        this.defaultTrail = Constants.DEFAULT_TRAIL_ID;
         trails.add(new Trail(Constants.VILLAGER_HAPPY_ID, Constants.HAPPY_VILLAGER_NAME, 10, 30, ParticleEffect.builder()
             .type(ParticleTypes.HAPPY_VILLAGER)
             .quantity(13)
@@ -83,4 +114,148 @@ class TrailConfig {
         ));
         return trails;
     }
+
+    @ConfigSerializable
+    static class Scheduling {
+
+        @Setting(comment = "Spread players using trails with the same period evenly across the ticks of that period")
+        boolean staggerEmissions = true;
+    }
+
+    @ConfigSerializable
+    static class Culling {
+
+        @Setting(comment = "Skip emissions that no player within the trail's radius would see")
+        boolean enabled = true;
+
+        @Setting(comment = "Whether the player wearing the trail counts as a viewer of their own trail")
+        boolean includeEmitter = false;
+    }
+
+    @ConfigSerializable
+    static class Budget {
+
+        @Setting(comment = "Adapt particle output to the measured tick time")
+        boolean enabled = true;
+
+        @Setting(comment = "The maximum number of particles sent to all viewers per tick at full scale, 0 for no cap")
+        int maxParticlesPerTick = 4000;
+
+        @Setting(comment = "Tick time in milliseconds at which trails start to be scaled down")
+        double pressureStartMillis = 51;
+
+        @Setting(comment = "Tick time in milliseconds at which trails are scaled down to the minimum scale")
+        double pressureMaxMillis = 65;
+
+        @Setting(comment = "The lowest fraction of particles trails are scaled down to under load")
+        double minimumScale = 0.25;
+
+        @Setting(comment = "How much of the scale is recovered each tick once load falls")
+        double recoveryPerTick = 0.01;
+
+        @Setting(comment = "The factor trail periods are stretched by at the minimum scale")
+        double maxPeriodStretch = 3;
+
+        @Setting(comment = "Below this scale, trails with a priority lower than dropPriorityBelow stop emitting")
+        double dropBelowScale = 0.5;
+
+        @Setting(comment = "Trails with a priority lower than this are dropped under heavy load")
+        int dropPriorityBelow = 0;
+    }
+
+    @ConfigSerializable
+    static class Density {
+
+        @Setting(comment = "Scale trails down where many players wearing trails are crowded together")
+        boolean enabled = true;
+
+        @Setting(comment = "The number of trail wearers in a 16x16 column above which their trails are scaled down, 0 for no cap")
+        int maxEmittersPerCell = 12;
+
+        @Setting(comment = "Scale the particle quantity of crowded trails down, shares the scale with scaleFrequency if both are on")
+        boolean scaleQuantity = true;
+
+        @Setting(comment = "Scale the emission frequency of crowded trails down, shares the scale with scaleQuantity if both are on")
+        boolean scaleFrequency = true;
+
+        @Setting(comment = "Regions overriding the density cap, for example to disable trails at spawn")
+        List<Region> regions = new ArrayList<>();
+    }
+
+    @ConfigSerializable
+    static class Region {
+
+        @Setting(comment = "The name of the world the region is in")
+        String world = "world";
+
+        @Setting int minX;
+        @Setting int minY;
+        @Setting int minZ;
+        @Setting int maxX;
+        @Setting int maxY = 255;
+        @Setting int maxZ;
+
+        @Setting(comment = "Whether trails are shown at all within the region")
+        boolean trailsEnabled = true;
+
+        @Setting(comment = "Overrides the density cap within the region, 0 to use the global cap")
+        int maxEmittersPerCell;
+
+        boolean contains(double x, double y, double z) {
+            return x >= this.minX && x < this.maxX + 1
+                   && y >= this.minY && y < this.maxY + 1
+                   && z >= this.minZ && z < this.maxZ + 1;
+        }
+    }
+
+    @ConfigSerializable
+    static class Reloading {
+
+        @Setting(comment = "Reload the trails automatically when this file is edited")
+        boolean watchConfig = true;
+
+        @Setting(comment = "How long the file has to stay unchanged before an edit is reloaded, in milliseconds")
+        long debounceMillis = 500;
+    }
+
+    @ConfigSerializable
+    static class Commands {
+
+        @Setting(comment = "How long the trails a player may use are cached for commands, in seconds")
+        int permissionCacheSeconds = 30;
+    }
+
+    @ConfigSerializable
+    static class Persistence {
+
+        @Setting(comment = "Only write a player's trail selection once they stop changing it, quit or the worlds are saved")
+        boolean writeBehind = true;
+
+        @Setting(comment = "How long a selection has to stay unchanged before it is written, in seconds")
+        int flushDelaySeconds = 10;
+    }
+
+    @ConfigSerializable
+    static class Movement {
+
+        @Setting(comment = "Stop emitting for players that haven't moved for this many seconds, 0 to keep emitting")
+        int idleTimeoutSeconds = 60;
+
+        @Setting(comment = "The most samples a distance trail emits for a single move, longer moves are treated as a teleport")
+        int maxSamplesPerMove = 8;
+    }
+
+    @ConfigSerializable
+    static class Network {
+
+        @Setting(comment = "The most particle packets a player is sent per second, emissions over it are thinned or dropped, 0 for no cap")
+        int maxPacketsPerViewerPerSecond = 0;
+    }
+
+    @ConfigSerializable
+    static class Debug {
+
+        @Setting(comment = "Measure the bytes the particle spawner allocates each tick, shown in /trail stats")
+        boolean measureAllocations = false;
+    }
 }
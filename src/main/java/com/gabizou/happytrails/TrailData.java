@@ -27,6 +27,7 @@ package com.gabizou.happytrails;
 import org.spongepowered.api.data.DataContainer;
 import org.spongepowered.api.data.DataHolder;
 import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.Queries;
 import org.spongepowered.api.data.manipulator.DataManipulator;
 import org.spongepowered.api.data.manipulator.DataManipulatorBuilder;
 import org.spongepowered.api.data.manipulator.ImmutableDataManipulator;
@@ -34,8 +35,10 @@ import org.spongepowered.api.data.manipulator.immutable.common.AbstractImmutable
 import org.spongepowered.api.data.manipulator.mutable.common.AbstractSingleCatalogData;
 import org.spongepowered.api.data.merge.MergeFunction;
 import org.spongepowered.api.data.persistence.AbstractDataBuilder;
+import org.spongepowered.api.data.persistence.DataContentUpdater;
 import org.spongepowered.api.data.persistence.InvalidDataException;
 
+import javax.annotation.Nullable;
 import java.util.Optional;
 
 public class TrailData extends AbstractSingleCatalogData<Trail, TrailData, TrailData.Immutable> implements DataManipulator<TrailData, TrailData.Immutable> {
@@ -52,14 +55,58 @@ public class TrailData extends AbstractSingleCatalogData<Trail, TrailData, Trail
 
     @Override
     public Optional<TrailData> from(DataContainer container) {
-        if (!container.contains(HappyTrails.TRAIL.getQuery())) {
+        final Trail trail = readTrail(container);
+        if (trail == null) {
             return Optional.empty();
         }
-        final Trail trail = container.getCatalogType(HappyTrails.TRAIL.getQuery(), Trail.class).orElse(TrailRegistry.getInstance().getDefaultTrail());
         this.setValue(trail);
         return Optional.of(this);
     }
 
+    @Override
+    public DataContainer toContainer() {
+        return writeRef(super.toContainer(), this.getValue());
+    }
+
+    /**
+     * Adds the number of the trail from the {@link TrailRefTable} next to its
+     * id. The id is kept so the selection survives losing the table.
+     */
+    static DataContainer writeRef(DataContainer container, Trail trail) {
+        final long ref = TrailRegistry.getInstance().getRef(trail);
+        if (ref != TrailRefTable.NONE) {
+            container.set(Constants.TRAIL_REF, ref);
+        }
+        return container;
+    }
+
+    /**
+     * Reads the trail from its number, or from its id if it wasn't numbered
+     * or the number is no longer known. Returns null if the data holds
+     * neither, data with only an unknown number gets the default trail.
+     */
+    @Nullable
+    static Trail readTrail(DataView container) {
+        final TrailRegistry registry = TrailRegistry.getInstance();
+        final Optional<Long> ref = container.getLong(Constants.TRAIL_REF);
+        if (ref.isPresent()) {
+            final Trail trail = registry.getByRef(ref.get());
+            if (trail != null) {
+                return trail;
+            }
+        }
+        if (container.contains(HappyTrails.TRAIL.getQuery())) {
+            return container.getString(HappyTrails.TRAIL.getQuery())
+                .flatMap(registry::getById)
+                .orElse(registry.getDefaultTrail());
+        }
+        if (ref.isPresent()) {
+            HappyTrails.getInstance().logger.warn("Unknown trail number " + ref.get() + " without a trail id, using the default trail");
+            return registry.getDefaultTrail();
+        }
+        return null;
+    }
+
     @Override
     public TrailData copy() {
         return new TrailData(this.getValue());
@@ -67,7 +114,7 @@ public class TrailData extends AbstractSingleCatalogData<Trail, TrailData, Trail
 
     @Override
     public Immutable asImmutable() {
-        return new Immutable(this.getValue());
+        return this.getValue().getImmutableData();
     }
 
     @Override
@@ -96,6 +143,11 @@ public class TrailData extends AbstractSingleCatalogData<Trail, TrailData, Trail
             return new TrailData(this.value);
         }
 
+        @Override
+        public DataContainer toContainer() {
+            return writeRef(super.toContainer(), this.value);
+        }
+
         @Override
         public int getContentVersion() {
             return Constants.DataVersions.Manipulator.TRAIL_DATA_VERSION;
@@ -122,11 +174,38 @@ public class TrailData extends AbstractSingleCatalogData<Trail, TrailData, Trail
 
         @Override
         protected Optional<TrailData> buildContent(DataView container) throws InvalidDataException {
-            if (container.contains(HappyTrails.TRAIL.getQuery())) {
-                final Trail trail = container.getCatalogType(HappyTrails.TRAIL.getQuery(), Trail.class).orElse(TrailRegistry.getInstance().getDefaultTrail());
-                return Optional.of(new TrailData(trail));
-            }
-            return Optional.empty();
+            final Trail trail = readTrail(container);
+            return trail == null ? Optional.empty() : Optional.of(new TrailData(trail));
+        }
+    }
+
+    /**
+     * Version 1 stored only the trail id, adds its number from the
+     * {@link TrailRefTable}.
+     */
+    static final class RefUpdater implements DataContentUpdater {
+
+        @Override
+        public int getInputVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getOutputVersion() {
+            return 2;
+        }
+
+        @Override
+        public DataView update(DataView content) {
+            content.getString(HappyTrails.TRAIL.getQuery())
+                .flatMap(TrailRegistry.getInstance()::getById)
+                .ifPresent(trail -> {
+                    final long ref = TrailRegistry.getInstance().getRef(trail);
+                    if (ref != TrailRefTable.NONE) {
+                        content.set(Constants.TRAIL_REF, ref);
+                    }
+                });
+            return content.set(Queries.CONTENT_VERSION, getOutputVersion());
         }
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A case insensitive prefix trie over the trail ids, indexing both the
+ * namespaced id and the bare id after the colon. Bare ids that exist in
+ * several namespaces resolve to the {@value Constants#MOD_ID} one, or else
+ * to the first one indexed. Every key maps to the namespaced id.
+ *
+ * <p>Built once per registry snapshot and never modified afterwards, lookups
+ * walk the nodes without allocating.</p>
+ */
+final class TrailIndex {
+
+    // Declared before EMPTY, which needs them while the class initializes
+    private static final char[] NO_CHARS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    static final TrailIndex EMPTY = new TrailIndex(new String[0]);
+
+    private static final class Node {
+
+        // Sorted so completions come out in order
+        char[] chars = NO_CHARS;
+        Node[] children = NO_NODES;
+        @Nullable String id;
+
+        @Nullable
+        Node child(char c) {
+            final int index = Arrays.binarySearch(this.chars, c);
+            return index < 0 ? null : this.children[index];
+        }
+
+        Node getOrCreate(char c) {
+            int index = Arrays.binarySearch(this.chars, c);
+            if (index >= 0) {
+                return this.children[index];
+            }
+            index = -index - 1;
+            final Node node = new Node();
+            final char[] chars = new char[this.chars.length + 1];
+            final Node[] children = new Node[chars.length];
+            System.arraycopy(this.chars, 0, chars, 0, index);
+            System.arraycopy(this.children, 0, children, 0, index);
+            chars[index] = c;
+            children[index] = node;
+            System.arraycopy(this.chars, index, chars, index + 1, this.chars.length - index);
+            System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+            this.chars = chars;
+            this.children = children;
+            return node;
+        }
+    }
+
+    private final Node namespaced = new Node();
+    private final Node bare = new Node();
+
+    /**
+     * @param ids The lowercase namespaced ids
+     */
+    TrailIndex(String[] ids) {
+        for (String id : ids) {
+            insert(this.namespaced, id, 0, id);
+        }
+        for (String id : ids) {
+            final int colon = id.indexOf(':');
+            if (colon >= 0 && id.startsWith(Constants.MOD_ID + ":")) {
+                insert(this.bare, id, colon + 1, id);
+            }
+        }
+        for (String id : ids) {
+            final int colon = id.indexOf(':');
+            if (colon >= 0) {
+                insert(this.bare, id, colon + 1, id);
+            }
+        }
+    }
+
+    private static void insert(Node root, String key, int start, String id) {
+        Node node = root;
+        for (int i = start; i < key.length(); i++) {
+            node = node.getOrCreate(key.charAt(i));
+        }
+        if (node.id == null) {
+            node.id = id;
+        }
+    }
+
+    @Nullable
+    private static Node find(Node root, CharSequence key) {
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(Character.toLowerCase(key.charAt(i)));
+        }
+        return node;
+    }
+
+    /**
+     * Gets the namespaced id for the given namespaced or bare id, ignoring
+     * case.
+     */
+    @Nullable
+    String get(CharSequence key) {
+        Node node = find(this.namespaced, key);
+        if (node == null || node.id == null) {
+            node = find(this.bare, key);
+        }
+        return node == null ? null : node.id;
+    }
+
+    /**
+     * Adds the namespaced ids of all trails whose namespaced or bare id
+     * starts with the given prefix, ignoring case.
+     */
+    void complete(CharSequence prefix, List<String> out) {
+        final Node namespaced = find(this.namespaced, prefix);
+        if (namespaced != null) {
+            collect(namespaced, out, null);
+        }
+        final Node bare = find(this.bare, prefix);
+        if (bare != null) {
+            collect(bare, out, prefix);
+        }
+    }
+
+    private static void collect(Node node, List<String> out, @Nullable CharSequence skipPrefix) {
+        // Ids already added through their namespaced id are skipped
+        final String id = node.id;
+        if (id != null && (skipPrefix == null || !startsWithIgnoreCase(id, skipPrefix))) {
+            out.add(id);
+        }
+        for (Node child : node.children) {
+            collect(child, out, skipPrefix);
+        }
+    }
+
+    private static boolean startsWithIgnoreCase(String id, CharSequence prefix) {
+        if (prefix.length() > id.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (id.charAt(i) != Character.toLowerCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.flowpowered.math.vector.Vector3d;
+import org.spongepowered.api.effect.particle.ParticleEffect;
+import org.spongepowered.api.effect.particle.ParticleOptions;
+
+/**
+ * The precomputed emission payload of a {@link Trail}. Sponge caches the
+ * particle packet on the {@link ParticleEffect} instance, so reusing the
+ * same instances means every emission only has to fill in the position.
+ * Besides the full effect, variants at evenly spaced fractions of the
+ * quantity are prebuilt for the particle budget and density controls.
+ *
+ * <p>Built once when the trail is registered and rebuilt on reload.</p>
+ */
+final class TrailPayload {
+
+    static final int STEPS = 16;
+    static final int NONE = -1;
+
+    final ParticleEffect effect;
+    final int quantity;
+    // Sponge sends particles with a velocity one packet each, see NetworkAccounting
+    final boolean perParticle;
+    private final ParticleEffect[] variants;
+    private final int[] variantQuantities;
+
+    TrailPayload(ParticleEffect effect) {
+        this.effect = effect;
+        this.quantity = Math.max(1, effect.getOption(ParticleOptions.QUANTITY).orElse(1));
+        this.perParticle = effect.getOption(ParticleOptions.VELOCITY).map(velocity -> !velocity.equals(Vector3d.ZERO)).orElse(false);
+        this.variants = new ParticleEffect[STEPS + 1];
+        this.variantQuantities = new int[STEPS + 1];
+        this.variants[STEPS] = effect;
+        this.variantQuantities[STEPS] = this.quantity;
+        int previousQuantity = this.quantity;
+        ParticleEffect previous = effect;
+        for (int step = STEPS - 1; step > 0; step--) {
+            final int stepQuantity = Math.max(1, Math.round((float) this.quantity * step / STEPS));
+            if (stepQuantity != previousQuantity) {
+                previous = ParticleEffect.builder().from(effect).quantity(stepQuantity).build();
+                previousQuantity = stepQuantity;
+            }
+            // Small quantities share their variants between neighbouring steps
+            this.variants[step] = previous;
+            this.variantQuantities[step] = previousQuantity;
+        }
+        this.variants[0] = this.variants[1];
+        this.variantQuantities[0] = this.variantQuantities[1];
+    }
+
+    /**
+     * Gets the step of the smallest prebuilt variant holding at least the
+     * requested quantity.
+     */
+    int getStep(int quantity) {
+        if (quantity >= this.quantity) {
+            return STEPS;
+        }
+        int step = Math.max(1, (quantity * STEPS + this.quantity - 1) / this.quantity);
+        // Variant quantities are rounded, so the step below may hold enough as well
+        while (step > 1 && this.variantQuantities[step - 1] >= quantity) {
+            step--;
+        }
+        return step;
+    }
+
+    /**
+     * Gets the step of the largest prebuilt variant holding at most the
+     * given quantity, or {@link #NONE} if even the smallest holds more.
+     */
+    int getFloorStep(int quantity) {
+        int step = getStep(quantity);
+        while (step > 0 && this.variantQuantities[step] > quantity) {
+            step--;
+        }
+        return step > 0 ? step : NONE;
+    }
+
+    ParticleEffect getVariant(int step) {
+        return this.variants[step];
+    }
+
+    /**
+     * Gets the number of particles the variant actually holds, which is
+     * what gets sent and should be accounted for.
+     */
+    int getVariantQuantity(int step) {
+        return this.variantQuantities[step];
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Assigns every trail id a small number that stays the same across restarts
+ * and reloads, which is what {@link TrailData} stores. Numbers are never
+ * reused, removing a trail only leaves a gap.
+ *
+ * <p>The table is saved next to the config. It carries a random epoch that
+ * is packed into the upper half of each stored number, so numbers written
+ * against a table that has since been deleted are recognized instead of
+ * resolving to whichever trail took their place. Such data falls back to
+ * the trail id stored next to the number.</p>
+ */
+final class TrailRefTable {
+
+    static final int NONE = -1;
+
+    private final HoconConfigurationLoader loader;
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[0];
+    private volatile int epoch;
+    private boolean dirty;
+
+    TrailRefTable(Path file) {
+        this.loader = HoconConfigurationLoader.builder().setPath(file).build();
+    }
+
+    synchronized void load() throws IOException {
+        final ConfigurationNode root = this.loader.load();
+        this.epoch = root.getNode("epoch").getInt(0);
+        if (this.epoch == 0) {
+            this.epoch = ThreadLocalRandom.current().nextInt() | 1;
+            this.dirty = true;
+        }
+        String[] ids = new String[0];
+        for (Map.Entry<Object, ? extends ConfigurationNode> entry : root.getNode("refs").getChildrenMap().entrySet()) {
+            final int ref = entry.getValue().getInt(NONE);
+            if (ref < 0) {
+                continue;
+            }
+            if (ref >= ids.length) {
+                ids = Arrays.copyOf(ids, ref + 1);
+            }
+            final String id = entry.getKey().toString();
+            ids[ref] = id;
+            this.refs.put(id, ref);
+        }
+        this.ids = ids;
+    }
+
+    /**
+     * Numbers the ids that don't have one yet, returns whether any did and
+     * the table needs to be saved.
+     */
+    synchronized boolean assign(Collection<String> ids) {
+        String[] table = this.ids;
+        for (String id : ids) {
+            if (!this.refs.containsKey(id)) {
+                table = Arrays.copyOf(table, table.length + 1);
+                table[table.length - 1] = id;
+                this.refs.put(id, table.length - 1);
+                this.dirty = true;
+            }
+        }
+        this.ids = table;
+        return this.dirty;
+    }
+
+    /**
+     * Saves the table if numbers were assigned since it was last saved, safe
+     * to call from any thread.
+     */
+    synchronized void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+        final ConfigurationNode root = this.loader.createEmptyNode();
+        root.getNode("epoch").setValue(this.epoch);
+        final String[] ids = this.ids;
+        for (int ref = 0; ref < ids.length; ref++) {
+            if (ids[ref] != null) {
+                root.getNode("refs", ids[ref]).setValue(ref);
+            }
+        }
+        this.loader.save(root);
+        this.dirty = false;
+    }
+
+    int getRef(String id) {
+        final Integer ref = this.refs.get(id);
+        return ref == null ? NONE : ref;
+    }
+
+    @Nullable
+    String getId(int ref) {
+        final String[] ids = this.ids;
+        return ref >= 0 && ref < ids.length ? ids[ref] : null;
+    }
+
+    /**
+     * One past the highest number handed out.
+     */
+    int size() {
+        return this.ids.length;
+    }
+
+    /**
+     * Packs the number with the epoch of this table into what
+     * {@link TrailData} stores.
+     */
+    long pack(int ref) {
+        return (long) this.epoch << 32 | ref & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Gets the number out of a stored value, or {@link #NONE} if it was
+     * written against a different table.
+     */
+    int unpack(long stored) {
+        return (int) (stored >>> 32) == this.epoch ? (int) stored : NONE;
+    }
+}
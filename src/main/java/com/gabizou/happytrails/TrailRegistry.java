@@ -28,6 +28,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Ints;
 import com.google.common.reflect.TypeToken;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
@@ -41,12 +44,19 @@ import org.spongepowered.api.effect.particle.ParticleTypes;
 import org.spongepowered.api.registry.AdditionalCatalogRegistryModule;
 import org.spongepowered.api.registry.RegistrationPhase;
 import org.spongepowered.api.registry.util.DelayedRegistration;
+import org.spongepowered.api.scheduler.Task;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public class TrailRegistry implements AdditionalCatalogRegistryModule<Trail> {
 
@@ -73,7 +83,270 @@ public class TrailRegistry implements AdditionalCatalogRegistryModule<Trail> {
         );
     }
 
-    private final Map<String, Trail> trails = new HashMap<>();
+    /**
+     * An immutable view of the registered trails. A new snapshot is built
+     * off to the side on every change and published with a single volatile
+     * write, so readers on any thread never lock or copy.
+     */
+    static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(0, 0, 0, ImmutableMap.of(), ImmutableMap.of());
+
+        // Bumped on every publish, including lazily resolved trails
+        final long version;
+        // Bumped on every reload
+        final long generation;
+        // Bumped whenever trails are added, removed or replaced, but not when a lazy trail is resolved
+        final long membership;
+        final ImmutableMap<String, Trail> byId;
+        // Trails from the catalog directory that haven't been resolved yet
+        final ImmutableMap<String, TrailCatalog.Entry> lazy;
+        final ImmutableList<Trail> all;
+        final ImmutableList<String> ids;
+        final TrailIndex index;
+
+        Snapshot(long version, long generation, long membership, ImmutableMap<String, Trail> byId,
+            ImmutableMap<String, TrailCatalog.Entry> lazy) {
+            this.version = version;
+            this.generation = generation;
+            this.membership = membership;
+            this.byId = byId;
+            this.lazy = lazy;
+            this.all = byId.values().asList();
+            this.ids = ImmutableList.<String>builder().addAll(byId.keySet()).addAll(lazy.keySet()).build();
+            this.index = this.ids.isEmpty() ? TrailIndex.EMPTY : new TrailIndex(this.ids.toArray(new String[0]));
+        }
+
+        /**
+         * Moves trails between resolved and lazy, the ids stay the same so
+         * the index of the previous snapshot is kept.
+         */
+        Snapshot(long version, Snapshot previous, ImmutableMap<String, Trail> byId, ImmutableMap<String, TrailCatalog.Entry> lazy) {
+            this.version = version;
+            this.generation = previous.generation;
+            this.membership = previous.membership;
+            this.byId = byId;
+            this.lazy = lazy;
+            this.all = byId.values().asList();
+            this.ids = previous.ids;
+            this.index = previous.index;
+        }
+    }
+
+    /**
+     * The difference a config reload made to the registry.
+     */
+    static final class ReloadResult {
+
+        final long generation;
+        final List<String> added;
+        final List<String> changed;
+        final List<String> removed;
+        // Handles now pointing at a different trail, only emitters wearing these need a look
+        final int[] rebound;
+        final long nanos;
+
+        ReloadResult(long generation, List<String> added, List<String> changed, List<String> removed, int[] rebound, long nanos) {
+            this.generation = generation;
+            this.added = added;
+            this.changed = changed;
+            this.removed = removed;
+            this.rebound = rebound;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("generation %d in %.2fms, added %s, changed %s, removed %s",
+                this.generation, this.nanos / 1_000_000D, this.added, this.changed, this.removed);
+        }
+    }
+
+    /**
+     * A reload computed against a snapshot, ready to be applied on the main
+     * thread in one step. Preparing doesn't touch the registry and builds
+     * the new snapshot as well, so it can all run off the main thread.
+     */
+    static final class PreparedReload {
+
+        final TrailConfig config;
+        @Nullable final TrailCatalog.Scan scan;
+        long baseVersion;
+        private final long baseMembership;
+        private final ImmutableMap<String, TrailCatalog.Entry> baseLazy;
+        Snapshot snapshot;
+        final Map<String, Trail> trails;
+        final Map<String, TrailCatalog.Entry> lazy = new LinkedHashMap<>();
+        final Set<String> managedIds = new HashSet<>();
+        final Trail fallback;
+        final List<Trail> replaced = new ArrayList<>();
+        final List<Trail> replacements = new ArrayList<>();
+        final List<Trail> removedTrails = new ArrayList<>();
+        // Fallback handles of removed trails whose id is back, keyed by that id
+        final Map<String, Integer> returned = new LinkedHashMap<>();
+        final List<String> added = new ArrayList<>();
+        final List<String> changed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final long prepareNanos;
+
+        PreparedReload(TrailConfig config, @Nullable TrailCatalog.Scan scan, @Nullable TrailCatalog catalog, Snapshot base,
+            Set<String> previousManagedIds, Map<String, Integer> fallbackHandles, Trail defaultTrail) {
+            final long start = System.nanoTime();
+            this.config = config;
+            this.scan = scan;
+            this.baseVersion = base.version;
+            this.baseMembership = base.membership;
+            this.baseLazy = base.lazy;
+            this.trails = new LinkedHashMap<>(base.byId);
+            for (Trail trail : config.trails) {
+                if (!trail.validate()) {
+                    continue;
+                }
+                final String key = trail.getId().toLowerCase(Locale.ENGLISH);
+                if (!this.managedIds.add(key)) {
+                    HappyTrails.getInstance().logger.warn("Trail is already registered: " + key);
+                    continue;
+                }
+                final Trail existing = this.trails.get(key);
+                if (existing == null) {
+                    this.trails.put(key, trail);
+                    this.added.add(key);
+                } else if (!existing.isSameDefinition(trail)) {
+                    replace(key, existing, trail);
+                }
+            }
+            if (scan != null && catalog != null) {
+                for (TrailCatalog.Entry entry : scan.entries) {
+                    if (!this.managedIds.add(entry.id)) {
+                        HappyTrails.getInstance().logger.warn("Trail is already registered: " + entry.id);
+                        continue;
+                    }
+                    final Trail existing = this.trails.get(entry.id);
+                    if (existing == null) {
+                        this.lazy.put(entry.id, entry);
+                        if (!previousManagedIds.contains(entry.id)) {
+                            this.added.add(entry.id);
+                        } else if (scan.changedFiles.contains(entry.file)) {
+                            this.changed.add(entry.id);
+                        }
+                    } else if (scan.changedFiles.contains(entry.file)) {
+                        if (existing.handle == EmitterTable.NONE) {
+                            // Nobody wears it, so it can go back to being resolved lazily
+                            this.trails.remove(entry.id);
+                            this.lazy.put(entry.id, entry);
+                            this.changed.add(entry.id);
+                            continue;
+                        }
+                        // Worn trails are resolved now so they can be rebound in place
+                        final Trail trail = catalog.resolve(entry);
+                        if (trail == null) {
+                            this.trails.remove(entry.id);
+                            this.removed.add(entry.id);
+                            this.removedTrails.add(existing);
+                        } else if (!existing.isSameDefinition(trail)) {
+                            replace(entry.id, existing, trail);
+                        }
+                    }
+                }
+            }
+            for (String key : previousManagedIds) {
+                if (this.managedIds.contains(key)) {
+                    continue;
+                }
+                final Trail old = this.trails.remove(key);
+                if (old != null) {
+                    this.removed.add(key);
+                    this.removedTrails.add(old);
+                } else if (base.lazy.containsKey(key)) {
+                    this.removed.add(key);
+                }
+            }
+            for (Map.Entry<String, Integer> fallbackHandle : fallbackHandles.entrySet()) {
+                final String key = fallbackHandle.getKey();
+                if (catalog != null && this.lazy.containsKey(key)) {
+                    // Somebody still wears the trail through its old handle, so it is resolved now to take the handle back
+                    final Trail trail = catalog.resolve(this.lazy.get(key));
+                    if (trail != null) {
+                        this.lazy.remove(key);
+                        this.trails.put(key, trail);
+                    }
+                }
+                if (this.trails.containsKey(key)) {
+                    this.returned.put(key, fallbackHandle.getValue());
+                }
+            }
+            Trail fallback = this.trails.get(config.defaultTrail.toLowerCase(Locale.ENGLISH));
+            if (fallback == null && catalog != null && this.lazy.containsKey(config.defaultTrail.toLowerCase(Locale.ENGLISH))) {
+                fallback = catalog.resolve(this.lazy.remove(config.defaultTrail.toLowerCase(Locale.ENGLISH)));
+                if (fallback != null) {
+                    this.trails.put(fallback.getId().toLowerCase(Locale.ENGLISH), fallback);
+                }
+            }
+            if (fallback == null) {
+                config.defaultTrail = defaultTrail.getId();
+                fallback = defaultTrail;
+            }
+            this.fallback = fallback;
+            // Build the payloads here so applying doesn't have to
+            this.trails.values().forEach(Trail::getPayload);
+            this.snapshot = new Snapshot(base.version + 1, base.generation + 1, base.membership + 1, ImmutableMap.copyOf(this.trails),
+                ImmutableMap.copyOf(this.lazy));
+            this.prepareNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Rebases the reload onto a snapshot that only resolved lazy trails
+         * since it was prepared, taking those trails over. Returns false if
+         * it has to be prepared again instead, which is when trails were
+         * registered in between or a trail resolved since is worn but this
+         * reload changes or removes it.
+         */
+        boolean rebase(Snapshot current) {
+            if (current.membership != this.baseMembership) {
+                return false;
+            }
+            for (String key : this.baseLazy.keySet()) {
+                final Trail resolved = current.byId.get(key);
+                if (resolved == null) {
+                    continue;
+                }
+                final TrailCatalog.Entry entry = this.lazy.get(key);
+                final boolean changed = entry == null || this.scan != null && this.scan.changedFiles.contains(entry.file);
+                if (changed) {
+                    if (resolved.handle != EmitterTable.NONE) {
+                        return false;
+                    }
+                    continue;
+                }
+                this.lazy.remove(key);
+                this.trails.put(key, resolved);
+            }
+            this.snapshot = new Snapshot(current.version + 1, this.snapshot, ImmutableMap.copyOf(this.trails), ImmutableMap.copyOf(this.lazy));
+            this.baseVersion = current.version;
+            return true;
+        }
+
+        private void replace(String key, Trail existing, Trail replacement) {
+            this.trails.put(key, replacement);
+            this.replaced.add(existing);
+            this.replacements.add(replacement);
+            this.changed.add(key);
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // Stable int handles for trails, used by the EmitterTable. Changed trails take over the handle of
+    // the trail they replace, so emitters pick them up without being visited.
+    private final List<Trail> handles = new ArrayList<>();
+    // Handles of removed trails by their id, pointing at the default trail until the id comes back
+    private volatile ImmutableMap<String, Integer> fallbackHandles = ImmutableMap.of();
+    // Ids of the trails that came from the config or the catalog, only those can be removed by a reload
+    private volatile Set<String> managedIds = new HashSet<>();
+    @Nullable private TrailCatalog catalog;
+    @Nullable private TrailRefTable refs;
+    // Resolved trails indexed by their number in the ref table, replaced whenever a snapshot is published
+    private volatile Trail[] byRef = new Trail[0];
+    private final EffectPool effects = new EffectPool();
 
     private TrailRegistry() { }
 
@@ -81,36 +354,189 @@ public class TrailRegistry implements AdditionalCatalogRegistryModule<Trail> {
         return INSTANCE;
     }
 
-    private Trail defaultTrail = new Trail(Constants.HEARTS_ID, Constants.HEARTS_NAME, Constants.DEFAULT_PERIOD, Constants.DEFAULT_RADIUS, ParticleEffect.builder()
-        .type(ParticleTypes.HEART)
-        .quantity(7)
-        .option(ParticleOptions.VELOCITY, Constants.DEFAULT_VELOCITY)
-        .build());
+    // Built on first use, the registry itself doesn't need Sponge's builders
+    private static final class DefaultTrail {
+
+        static final Trail TRAIL = new Trail(Constants.HEARTS_ID, Constants.HEARTS_NAME, Constants.DEFAULT_PERIOD,
+            Constants.DEFAULT_RADIUS, ParticleEffect.builder()
+            .type(ParticleTypes.HEART)
+            .quantity(7)
+            .option(ParticleOptions.VELOCITY, Constants.DEFAULT_VELOCITY)
+            .build());
+    }
 
     Trail getDefaultTrail() {
-        return this.defaultTrail;
+        return DefaultTrail.TRAIL;
+    }
+
+    Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    EffectPool getEffectPool() {
+        return this.effects;
+    }
+
+    void setCatalog(@Nullable TrailCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    synchronized void setRefTable(@Nullable TrailRefTable refs) {
+        this.refs = refs;
+        assignRefs();
+    }
+
+    /**
+     * Numbers new trails and indexes the resolved trails by number. Saving
+     * the table is left to an async task.
+     */
+    private void assignRefs() {
+        final TrailRefTable refs = this.refs;
+        if (refs == null) {
+            return;
+        }
+        if (refs.assign(this.snapshot.ids)) {
+            Task.builder()
+                .async()
+                .name("HappyTrails Ref Table Save")
+                .execute(this::saveRefs)
+                .submit(HappyTrails.getInstance());
+        }
+        final Trail[] byRef = new Trail[refs.size()];
+        for (Map.Entry<String, Trail> entry : this.snapshot.byId.entrySet()) {
+            final int ref = refs.getRef(entry.getKey());
+            if (ref != TrailRefTable.NONE) {
+                byRef[ref] = entry.getValue();
+            }
+        }
+        this.byRef = byRef;
+    }
+
+    /**
+     * Saves numbers assigned since the ref table was last saved, safe to call
+     * from any thread.
+     */
+    void saveRefs() {
+        final TrailRefTable refs = this.refs;
+        if (refs != null) {
+            try {
+                refs.save();
+            } catch (IOException e) {
+                HappyTrails.getInstance().logger.error("Could not save the trail ref table", e);
+            }
+        }
+    }
+
+    /**
+     * Gets what {@link TrailData} stores for the trail, or
+     * {@link TrailRefTable#NONE} if it hasn't been numbered.
+     */
+    long getRef(Trail trail) {
+        final TrailRefTable refs = this.refs;
+        if (refs == null) {
+            return TrailRefTable.NONE;
+        }
+        final int ref = refs.getRef(trail.getId().toLowerCase(Locale.ENGLISH));
+        return ref == TrailRefTable.NONE ? TrailRefTable.NONE : refs.pack(ref);
+    }
+
+    /**
+     * Resolves a value stored by {@link TrailData}, returns null if it was
+     * written against a different ref table or its trail is gone.
+     */
+    @Nullable
+    Trail getByRef(long stored) {
+        final TrailRefTable refs = this.refs;
+        final int ref = refs == null ? TrailRefTable.NONE : refs.unpack(stored);
+        if (ref < 0) {
+            return null;
+        }
+        final Trail[] byRef = this.byRef;
+        if (ref < byRef.length && byRef[ref] != null) {
+            return byRef[ref];
+        }
+        // Trails from the catalog directory are only numbered by id until they are resolved
+        final String key = refs.getId(ref);
+        return key == null ? null : lookup(this.snapshot, key).orElse(null);
+    }
+
+    private void publish(Map<String, Trail> trails) {
+        // Payloads are precomputed up front so no emission has to build them, unchanged trails keep theirs
+        trails.values().forEach(Trail::getPayload);
+        final Snapshot current = this.snapshot;
+        this.snapshot = new Snapshot(current.version + 1, current.generation, current.membership + 1, ImmutableMap.copyOf(trails),
+            current.lazy);
+    }
+
+    int getHandle(Trail trail) {
+        if (trail.handle == EmitterTable.NONE) {
+            trail.handle = this.handles.size();
+            this.handles.add(trail);
+        }
+        return trail.handle;
+    }
+
+    Trail getByHandle(int handle) {
+        return this.handles.get(handle);
     }
 
     @Override
     public Optional<Trail> getById(String id) {
-        String key = checkNotNull(id).toLowerCase(Locale.ENGLISH);
-        if (!key.contains(":")) {
-            key = Constants.MOD_ID + ":" + key;
+        final Snapshot snapshot = this.snapshot;
+        final String key = snapshot.index.get(checkNotNull(id));
+        return key == null ? Optional.empty() : lookup(snapshot, key);
+    }
+
+    private Optional<Trail> lookup(Snapshot snapshot, String key) {
+        final Trail trail = snapshot.byId.get(key);
+        if (trail != null) {
+            return Optional.of(trail);
+        }
+        final TrailCatalog.Entry entry = snapshot.lazy.get(key);
+        return entry == null ? Optional.empty() : Optional.ofNullable(resolveLazy(entry));
+    }
+
+    @Nullable
+    private synchronized Trail resolveLazy(TrailCatalog.Entry entry) {
+        final Snapshot current = this.snapshot;
+        final Trail existing = current.byId.get(entry.id);
+        if (existing != null || this.catalog == null || !current.lazy.containsKey(entry.id)) {
+            return existing;
+        }
+        final Trail trail = this.catalog.resolve(entry);
+        if (trail == null) {
+            return null;
         }
-        return Optional.ofNullable(this.trails.get(key));
+        trail.getPayload();
+        final Map<String, Trail> trails = new LinkedHashMap<>(current.byId);
+        trails.put(entry.id, trail);
+        final Map<String, TrailCatalog.Entry> lazy = new LinkedHashMap<>(current.lazy);
+        lazy.remove(entry.id);
+        this.snapshot = new Snapshot(current.version + 1, current, ImmutableMap.copyOf(trails), ImmutableMap.copyOf(lazy));
+        final int ref = this.refs == null ? TrailRefTable.NONE : this.refs.getRef(entry.id);
+        if (ref != TrailRefTable.NONE && ref < this.byRef.length) {
+            final Trail[] byRef = this.byRef.clone();
+            byRef[ref] = trail;
+            this.byRef = byRef;
+        }
+        return trail;
     }
 
     @Override
     public Collection<Trail> getAll() {
-        return ImmutableList.copyOf(this.trails.values());
+        return this.snapshot.all;
     }
 
     @Override
-    public void registerAdditionalCatalog(Trail extraCatalog) {
+    public synchronized void registerAdditionalCatalog(Trail extraCatalog) {
         checkNotNull(extraCatalog, "CatalogType cannot be null");
         checkArgument(!extraCatalog.getId().isEmpty(), "Id cannot be empty");
-        checkArgument(!this.trails.containsKey(extraCatalog.getId()), "Duplicate Id: " + extraCatalog.getId());
-        this.trails.put(extraCatalog.getId().toLowerCase(Locale.ENGLISH), extraCatalog);
+        final String key = extraCatalog.getId().toLowerCase(Locale.ENGLISH);
+        final Map<String, Trail> trails = new LinkedHashMap<>(this.snapshot.byId);
+        checkArgument(!trails.containsKey(key) && !this.snapshot.lazy.containsKey(key), "Duplicate Id: " + extraCatalog.getId());
+        trails.put(key, extraCatalog);
+        publish(trails);
+        assignRefs();
     }
 
     @DelayedRegistration(RegistrationPhase.INIT)
@@ -118,23 +544,79 @@ public class TrailRegistry implements AdditionalCatalogRegistryModule<Trail> {
     public void registerDefaults() {
     }
 
-    void registerFromConfig(TrailConfig config) {
-        config.trails.forEach(trail -> {
-            if (!trail.validate()) {
-                return;
+    /**
+     * Diffs the config against the current snapshot, safe to call from any
+     * thread.
+     */
+    PreparedReload prepare(TrailConfig config, @Nullable TrailCatalog.Scan scan) {
+        return new PreparedReload(config, scan, this.catalog, this.snapshot, this.managedIds, this.fallbackHandles, this.getDefaultTrail());
+    }
+
+    /**
+     * Applies a prepared reload. Unchanged trails keep their instances,
+     * changed trails are rebound in place through their handle and the
+     * handles of removed trails fall back to the config's default trail
+     * until a trail with their id comes back, so online emitters never need
+     * to be visited. If lazy trails were resolved since the reload was
+     * prepared it is rebased onto them, any other change to the registry
+     * prepares it again first.
+     */
+    synchronized ReloadResult apply(PreparedReload prepared) {
+        if (prepared.baseVersion != this.snapshot.version && !prepared.rebase(this.snapshot)) {
+            prepared = prepare(prepared.config, prepared.scan);
+        }
+        final long start = System.nanoTime();
+        final List<Integer> rebound = new ArrayList<>();
+        for (int i = 0; i < prepared.replaced.size(); i++) {
+            final Trail existing = prepared.replaced.get(i);
+            if (existing.handle != EmitterTable.NONE) {
+                rebound.add(existing.handle);
             }
-            final String key = trail.getId().toLowerCase(Locale.ENGLISH);
-            if (this.trails.containsKey(key)) {
-                HappyTrails.getInstance().logger.warn("Trail is already registered: " + key);
-                return;
+            rebind(existing, prepared.replacements.get(i));
+        }
+        final Map<String, Integer> fallbackHandles = new LinkedHashMap<>(this.fallbackHandles);
+        for (Map.Entry<String, Integer> returned : prepared.returned.entrySet()) {
+            // The id is back, whoever wore it through its old handle gets the new trail
+            final Trail trail = prepared.trails.get(returned.getKey());
+            final int handle = returned.getValue();
+            if (trail.handle == EmitterTable.NONE) {
+                trail.handle = handle;
+            }
+            this.handles.set(handle, trail);
+            fallbackHandles.remove(returned.getKey());
+            rebound.add(handle);
+        }
+        for (Trail old : prepared.removedTrails) {
+            if (old.handle != EmitterTable.NONE) {
+                fallbackHandles.put(old.getId().toLowerCase(Locale.ENGLISH), old.handle);
             }
-            this.trails.put(key, trail);
-        });
-
-        Trail trail = this.trails.get(config.defaultTrail);
-        if (trail == null) {
-            config.defaultTrail = this.getDefaultTrail().getId();
         }
+        for (int handle : fallbackHandles.values()) {
+            if (this.handles.set(handle, prepared.fallback) != prepared.fallback) {
+                rebound.add(handle);
+            }
+        }
+        this.fallbackHandles = ImmutableMap.copyOf(fallbackHandles);
+        this.managedIds = prepared.managedIds;
+        this.snapshot = prepared.snapshot;
+        assignRefs();
+        // Payloads of effects that went away with the reload would otherwise be kept forever
+        this.effects.retain(Iterables.concat(this.snapshot.all, this.handles));
+        return new ReloadResult(this.snapshot.generation, prepared.added, prepared.changed, prepared.removed,
+            Ints.toArray(rebound), prepared.prepareNanos + System.nanoTime() - start);
+    }
 
+    ReloadResult registerFromConfig(TrailConfig config) {
+        // Without a scan every catalog trail would count as removed
+        final TrailCatalog catalog = this.catalog;
+        return apply(prepare(config, catalog == null ? null : catalog.getLastScan()));
+    }
+
+    private void rebind(Trail existing, Trail replacement) {
+        final int handle = existing.handle;
+        if (handle != EmitterTable.NONE) {
+            replacement.handle = handle;
+            this.handles.set(handle, replacement);
+        }
     }
 }
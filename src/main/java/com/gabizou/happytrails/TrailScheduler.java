@@ -0,0 +1,149 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import java.util.Arrays;
+
+/**
+ * A hashed timing wheel of emitters keyed by the tick they are next due on.
+ * Each tick only the bucket for that tick is visited. Emitters are linked
+ * through the wheel arrays of the {@link EmitterTable} by slot, so
+ * scheduling and cancelling are O(1) and allocation free.
+ *
+ * <p>Periods longer than the wheel simply stay in their bucket for additional
+ * rotations, their due tick is checked on each visit. Only used from the main
+ * thread.</p>
+ */
+final class TrailScheduler {
+
+    private static final int WHEEL_SIZE = 256;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    interface DueHandler {
+
+        void onDue(int slot, long tick);
+    }
+
+    private final int[] buckets = new int[WHEEL_SIZE];
+    private final EmitterTable emitters;
+    private final DueHandler handler;
+    private long tick;
+    private int scheduled;
+
+    TrailScheduler(EmitterTable emitters, DueHandler handler) {
+        this.emitters = emitters;
+        this.handler = handler;
+        Arrays.fill(this.buckets, EmitterTable.NONE);
+    }
+
+    long getTick() {
+        return this.tick;
+    }
+
+    int getScheduledCount() {
+        return this.scheduled;
+    }
+
+    boolean isScheduled(int slot) {
+        return this.emitters.wheelBucket[slot] != EmitterTable.NONE;
+    }
+
+    void schedule(int slot, long dueTick) {
+        final EmitterTable emitters = this.emitters;
+        if (emitters.wheelBucket[slot] != EmitterTable.NONE) {
+            cancel(slot);
+        }
+        final long due = Math.max(dueTick, this.tick + 1);
+        final int bucket = (int) (due & WHEEL_MASK);
+        final int head = this.buckets[bucket];
+        emitters.dueTick[slot] = due;
+        emitters.wheelBucket[slot] = bucket;
+        emitters.wheelPrev[slot] = EmitterTable.NONE;
+        emitters.wheelNext[slot] = head;
+        if (head != EmitterTable.NONE) {
+            emitters.wheelPrev[head] = slot;
+        }
+        this.buckets[bucket] = slot;
+        this.scheduled++;
+    }
+
+    void cancel(int slot) {
+        final EmitterTable emitters = this.emitters;
+        final int bucket = emitters.wheelBucket[slot];
+        if (bucket == EmitterTable.NONE) {
+            return;
+        }
+        final int prev = emitters.wheelPrev[slot];
+        final int next = emitters.wheelNext[slot];
+        if (prev == EmitterTable.NONE) {
+            this.buckets[bucket] = next;
+        } else {
+            emitters.wheelNext[prev] = next;
+        }
+        if (next != EmitterTable.NONE) {
+            emitters.wheelPrev[next] = prev;
+        }
+        emitters.wheelPrev[slot] = EmitterTable.NONE;
+        emitters.wheelNext[slot] = EmitterTable.NONE;
+        emitters.wheelBucket[slot] = EmitterTable.NONE;
+        this.scheduled--;
+    }
+
+    /**
+     * Advances the wheel by one tick, handing every emitter due on the new
+     * tick to the handler. Handlers are expected to reschedule the emitter
+     * if it should keep emitting.
+     */
+    void advance() {
+        final long now = ++this.tick;
+        final EmitterTable emitters = this.emitters;
+        int slot = this.buckets[(int) (now & WHEEL_MASK)];
+        while (slot != EmitterTable.NONE) {
+            // Grab the next link before the handler can reschedule the emitter.
+            final int next = emitters.wheelNext[slot];
+            if (emitters.dueTick[slot] <= now) {
+                cancel(slot);
+                this.handler.onDue(slot, now);
+            }
+            slot = next;
+        }
+    }
+
+    void clear() {
+        final EmitterTable emitters = this.emitters;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            int slot = this.buckets[i];
+            while (slot != EmitterTable.NONE) {
+                final int next = emitters.wheelNext[slot];
+                emitters.wheelPrev[slot] = EmitterTable.NONE;
+                emitters.wheelNext[slot] = EmitterTable.NONE;
+                emitters.wheelBucket[slot] = EmitterTable.NONE;
+                slot = next;
+            }
+            this.buckets[i] = EmitterTable.NONE;
+        }
+        this.scheduled = 0;
+    }
+}
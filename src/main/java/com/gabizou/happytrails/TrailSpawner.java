@@ -0,0 +1,246 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import com.flowpowered.math.vector.Vector3d;
+import org.spongepowered.api.effect.particle.ParticleEffect;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.List;
+
+/**
+ * Emits the trails of the {@link EmitterTable} as the {@link TrailScheduler}
+ * comes across them, applying the crowd density, the particle budget, the
+ * per viewer network cap and the level of detail of the trail. Particles
+ * leave through a {@link ParticleSender}, so the emission path doesn't need a
+ * server to run.
+ *
+ * <p>Only used from the main thread.</p>
+ */
+final class TrailSpawner {
+
+    interface ParticleSender {
+
+        /**
+         * Spawns the particles for the viewer's player, unless it is gone.
+         */
+        ParticleSender PLAYER = (viewer, effect, position) -> {
+            final Player player = viewer.getPlayer();
+            if (player == null) {
+                return false;
+            }
+            player.spawnParticles(effect, position);
+            return true;
+        };
+
+        /**
+         * Sends the effect to the viewer, returns whether it was sent.
+         */
+        boolean send(PlayerWrapper viewer, ParticleEffect effect, Vector3d position);
+    }
+
+    private final EmitterTable emitters;
+    private final TrailScheduler scheduler;
+    private final PhaseBalancer balancer;
+    private final SpatialIndex spatialIndex;
+    private final ViewerResolver viewers;
+    private final DensityController density;
+    private final ParticleBudget budget;
+    private final NetworkAccounting network;
+    private final TrailStatistics statistics;
+    private final AllocationProbe allocations;
+    private final ParticleSender sender;
+    private TrailConfig config;
+
+    TrailSpawner(EmitterTable emitters, PhaseBalancer balancer, SpatialIndex spatialIndex, ViewerResolver viewers,
+        DensityController density, ParticleBudget budget, NetworkAccounting network, TrailStatistics statistics,
+        AllocationProbe allocations, ParticleSender sender, TrailConfig config) {
+        this.emitters = emitters;
+        this.scheduler = new TrailScheduler(emitters, this::emit);
+        this.balancer = balancer;
+        this.spatialIndex = spatialIndex;
+        this.viewers = viewers;
+        this.density = density;
+        this.budget = budget;
+        this.network = network;
+        this.statistics = statistics;
+        this.allocations = allocations;
+        this.sender = sender;
+        this.config = config;
+    }
+
+    TrailScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    void setConfig(TrailConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs one tick of the particle spawner, emitting every trail due on it.
+     */
+    void tick() {
+        final boolean measure = this.config.debug.measureAllocations && this.allocations.enable();
+        if (measure) {
+            this.allocations.startTick();
+        }
+        if (this.config.budget.enabled) {
+            this.budget.startTick(this.config.budget);
+        }
+        this.scheduler.advance();
+        this.statistics.completeTick();
+        if (measure) {
+            this.allocations.endTick();
+        }
+    }
+
+    private void emit(int slot, long tick) {
+        final EmitterTable emitters = this.emitters;
+        final PlayerWrapper session = emitters.getOwner(slot);
+        if (session == null) {
+            return;
+        }
+        final Trail trail = TrailRegistry.getInstance().getByHandle(emitters.trailIndex[slot]);
+        final long idleTicks = this.config.movement.idleTimeoutSeconds * 20L;
+        if (!trail.isPolled() || idleTicks > 0 && tick - emitters.lastMoveTick[slot] > idleTicks) {
+            // Left unscheduled, moving wakes the emitter up again unless its trail isn't polled
+            if (trail.isPolled()) {
+                this.statistics.recordIdleSuspension();
+                // Suspended emitters don't count towards the density of their cell
+                this.spatialIndex.setEmitter(session, false);
+            }
+            this.balancer.release(slot);
+            return;
+        }
+        final TrailConfig.Budget budget = this.config.budget;
+        final TrailConfig.Density densityConfig = this.config.density;
+        final double density = emitters.hasFlag(slot, EmitterTable.POSITIONED)
+            ? tryEmit(session, trail, emitters.lastX[slot], emitters.lastY[slot], emitters.lastZ[slot]) : 1;
+        // A trail emits on the tick it is due and then waits out its full period.
+        final int interval = trail.period + 1;
+        if (emitters.phaseInterval[slot] != interval && this.config.scheduling.staggerEmissions) {
+            // The trail was swapped for one with a different period, find it a new phase
+            this.scheduler.schedule(slot, this.balancer.assign(slot, interval, tick));
+        } else {
+            int next = budget.enabled ? this.budget.stretchInterval(interval, budget) : interval;
+            final double frequency = DensityController.getFrequencyFactor(density, densityConfig);
+            if (frequency > 0 && frequency < 1) {
+                next = (int) Math.ceil(next / frequency);
+            }
+            this.scheduler.schedule(slot, tick + next);
+        }
+    }
+
+    private static double distanceSquared(PlayerWrapper viewer, double x, double y, double z) {
+        final double dx = viewer.x - x;
+        final double dy = viewer.y - y;
+        final double dz = viewer.z - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Emits the trail unless the crowd density or the particle budget hold it
+     * back, returns the density factor.
+     */
+    double tryEmit(PlayerWrapper session, Trail trail, double x, double y, double z) {
+        final int slot = session.emitterSlot;
+        if (this.emitters.hasFlag(slot, EmitterTable.HIDDEN)) {
+            // Vanished and spectating players leave no trail at all
+            return 1;
+        }
+        final TrailConfig.Budget budget = this.config.budget;
+        final TrailConfig.Density densityConfig = this.config.density;
+        final double density = this.density.getFactor(this.emitters.cells[slot], x, y, z, densityConfig);
+        if (density <= 0) {
+            this.statistics.recordDensityLimited();
+        } else if (budget.enabled && this.budget.shouldDrop(trail.getPriority(), budget)) {
+            this.statistics.recordThrottled();
+        } else {
+            if (density < 1) {
+                this.statistics.recordDensityLimited();
+            }
+            emitAt(session, trail, x, y, z, DensityController.getQuantityFactor(density, densityConfig));
+        }
+        return density;
+    }
+
+    private void emitAt(PlayerWrapper session, Trail trail, double x, double y, double z, double density) {
+        final TrailConfig.Culling culling = this.config.culling;
+        final int others = this.viewers.resolve(session, x, y, z, trail.getRadius());
+        if (culling.enabled && others == 0 && !culling.includeEmitter) {
+            this.statistics.recordCulled();
+            return;
+        }
+        final List<PlayerWrapper> recipients = this.viewers.getViewers();
+        final TrailPayload payload = trail.getPayload();
+        int quantity = trail.getQuantity();
+        if (density < 1) {
+            quantity = Math.max(1, (int) Math.round(quantity * density));
+        }
+        final boolean lod = trail.hasLod();
+        if (this.config.budget.enabled) {
+            quantity = this.budget.scaleQuantity(quantity);
+        }
+        // Variants are prebuilt, the one picked may hold a few more particles than asked for and is what gets counted
+        final int step = payload.getStep(quantity);
+        if (this.config.budget.enabled) {
+            long particles = (long) payload.getVariantQuantity(step) * recipients.size();
+            if (lod) {
+                particles = 0;
+                for (int i = 0, size = recipients.size(); i < size; i++) {
+                    final int viewerQuantity = trail.getLodQuantity(quantity, distanceSquared(recipients.get(i), x, y, z));
+                    particles += payload.getVariantQuantity(payload.getStep(viewerQuantity));
+                }
+            }
+            if (!this.budget.tryConsume(particles)) {
+                this.statistics.recordThrottled();
+                return;
+            }
+        }
+        // Sponge only takes a vector, so one is built per emission that wasn't culled unless the session's own fits
+        final Vector3d sessionPosition = session.position;
+        final Vector3d position = sessionPosition != null && x == session.x && y == session.y && z == session.z
+            ? sessionPosition : new Vector3d(x, y, z);
+        final int cap = this.config.network.maxPacketsPerViewerPerSecond;
+        final long tick = this.scheduler.getTick();
+        final int handle = this.emitters.trailIndex[session.emitterSlot];
+        final boolean measure = this.allocations.isEnabled() && this.config.debug.measureAllocations;
+        final long sendStart = measure ? this.allocations.startExcluded() : 0;
+        for (int i = 0, size = recipients.size(); i < size; i++) {
+            final PlayerWrapper recipient = recipients.get(i);
+            // Far viewers get one of the prebuilt lower quantity variants
+            int viewerStep = lod ? payload.getStep(trail.getLodQuantity(quantity, distanceSquared(recipient, x, y, z))) : step;
+            viewerStep = this.network.allow(recipient, payload, viewerStep, cap, tick);
+            if (viewerStep != TrailPayload.NONE && this.sender.send(recipient, payload.getVariant(viewerStep), position)) {
+                this.network.record(session, handle, recipient, payload.getVariantQuantity(viewerStep), payload.perParticle);
+            }
+        }
+        if (measure) {
+            this.allocations.endExcluded(sendStart);
+        }
+        this.statistics.recordEmission(others);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+/**
+ * Rolling counters for the particle spawner, reported by {@code /trail stats}.
+ * Only updated from the main thread.
+ */
+final class TrailStatistics {
+
+    static final int WINDOW = 200;
+
+    private final int[] emissionsPerTick = new int[WINDOW];
+    private int cursor;
+    private int filled;
+    private int current;
+    private long totalEmissions;
+    private long culledEmissions;
+    private long totalViewers;
+    private long throttledEmissions;
+    private long densityLimitedEmissions;
+    private long idleSuspensions;
+
+    void recordEmission(int viewers) {
+        this.current++;
+        this.totalEmissions++;
+        this.totalViewers += viewers;
+    }
+
+    void recordCulled() {
+        this.culledEmissions++;
+    }
+
+    void recordThrottled() {
+        this.throttledEmissions++;
+    }
+
+    void recordDensityLimited() {
+        this.densityLimitedEmissions++;
+    }
+
+    void recordIdleSuspension() {
+        this.idleSuspensions++;
+    }
+
+    void completeTick() {
+        this.emissionsPerTick[this.cursor] = this.current;
+        this.cursor = (this.cursor + 1) % WINDOW;
+        if (this.filled < WINDOW) {
+            this.filled++;
+        }
+        this.current = 0;
+    }
+
+    long getTotalEmissions() {
+        return this.totalEmissions;
+    }
+
+    long getCulledEmissions() {
+        return this.culledEmissions;
+    }
+
+    long getThrottledEmissions() {
+        return this.throttledEmissions;
+    }
+
+    long getDensityLimitedEmissions() {
+        return this.densityLimitedEmissions;
+    }
+
+    long getIdleSuspensions() {
+        return this.idleSuspensions;
+    }
+
+    double getCulledRatio() {
+        final long due = this.totalEmissions + this.culledEmissions + this.throttledEmissions;
+        return due == 0 ? 0 : (double) this.culledEmissions / due;
+    }
+
+    double getMeanViewersPerEmission() {
+        return this.totalEmissions == 0 ? 0 : (double) this.totalViewers / this.totalEmissions;
+    }
+
+    int getSampledTicks() {
+        return this.filled;
+    }
+
+    int getMinEmissionsPerTick() {
+        int min = this.filled == 0 ? 0 : Integer.MAX_VALUE;
+        for (int i = 0; i < this.filled; i++) {
+            min = Math.min(min, this.emissionsPerTick[i]);
+        }
+        return min;
+    }
+
+    int getMaxEmissionsPerTick() {
+        int max = 0;
+        for (int i = 0; i < this.filled; i++) {
+            max = Math.max(max, this.emissionsPerTick[i]);
+        }
+        return max;
+    }
+
+    double getMeanEmissionsPerTick() {
+        if (this.filled == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < this.filled; i++) {
+            sum += this.emissionsPerTick[i];
+        }
+        return (double) sum / this.filled;
+    }
+
+    double getEmissionsStdDev() {
+        if (this.filled == 0) {
+            return 0;
+        }
+        final double mean = getMeanEmissionsPerTick();
+        double variance = 0;
+        for (int i = 0; i < this.filled; i++) {
+            final double delta = this.emissionsPerTick[i] - mean;
+            variance += delta * delta;
+        }
+        return Math.sqrt(variance / this.filled);
+    }
+
+    void reset() {
+        this.cursor = 0;
+        this.filled = 0;
+        this.current = 0;
+        this.totalEmissions = 0;
+        this.culledEmissions = 0;
+        this.totalViewers = 0;
+        this.throttledEmissions = 0;
+        this.densityLimitedEmissions = 0;
+        this.idleSuspensions = 0;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+/**
+ * What makes a {@link Trail} emit. Periodic trails are polled by the particle
+ * spawner, every other trigger is driven by events and the trail's period
+ * becomes the minimum number of ticks between two emissions.
+ */
+enum TrailTrigger {
+
+    PERIODIC(false),
+    JUMP(true),
+    SPRINT_START(true),
+    // Emits every period for as long as the player glides
+    GLIDE(true),
+    LAND(true),
+    // Emits at the entity the player damaged
+    HIT(false);
+
+    private final boolean movement;
+
+    TrailTrigger(boolean movement) {
+        this.movement = movement;
+    }
+
+    /**
+     * Whether the trigger is detected from movement events.
+     */
+    boolean isMovement() {
+        return this.movement;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+/**
+ * Whose trails a player wants to see, set with {@code /trail visibility}.
+ */
+enum TrailVisibility {
+
+    ALL,
+    // Their own and those of players on the same scoreboard team
+    FRIENDS,
+    OWN,
+    NONE;
+
+    /**
+     * Whether the viewer gets to see the trail of the emitter, only reads
+     * fields already on the sessions.
+     */
+    static boolean canSee(PlayerWrapper viewer, PlayerWrapper emitter) {
+        switch (viewer.visibility) {
+            case ALL:
+                return true;
+            case FRIENDS:
+                return viewer == emitter || viewer.friends.get(emitter.slot);
+            case OWN:
+                return viewer == emitter;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Counts the emitters per event {@link TrailTrigger}, so event listeners can
+ * return straight away while nobody wears a trail with their trigger.
+ * Emitters are counted per trail handle, a reload that changes the trigger
+ * of a trail moves the count of its handle over without visiting any
+ * emitter. Only used from the main thread.
+ */
+final class TriggerIndex {
+
+    private final int[] counts = new int[TrailTrigger.values().length];
+    private int movementCount;
+    // Emitters wearing each trail handle and the trigger they are counted under
+    private int[] handleEmitters = new int[16];
+    private TrailTrigger[] handleTriggers = new TrailTrigger[16];
+
+    /**
+     * Counts an emitter that started wearing the trail handle.
+     */
+    void add(int handle, TrailTrigger trigger) {
+        if (handle >= this.handleEmitters.length) {
+            final int length = Math.max(handle + 1, this.handleEmitters.length << 1);
+            this.handleEmitters = Arrays.copyOf(this.handleEmitters, length);
+            this.handleTriggers = Arrays.copyOf(this.handleTriggers, length);
+        }
+        if (this.handleEmitters[handle]++ == 0) {
+            this.handleTriggers[handle] = counted(trigger);
+        }
+        count(this.handleTriggers[handle], 1);
+    }
+
+    /**
+     * Stops counting an emitter that wore the trail handle.
+     */
+    void remove(int handle) {
+        if (handle < this.handleEmitters.length && this.handleEmitters[handle] > 0) {
+            this.handleEmitters[handle]--;
+            count(this.handleTriggers[handle], -1);
+        }
+    }
+
+    /**
+     * Moves the emitters of a handle whose trail was replaced over to the
+     * trigger of the replacement.
+     */
+    void rebind(int handle, TrailTrigger trigger) {
+        if (handle >= this.handleEmitters.length) {
+            return;
+        }
+        final TrailTrigger counted = counted(trigger);
+        final int emitters = this.handleEmitters[handle];
+        if (emitters > 0 && this.handleTriggers[handle] != counted) {
+            count(this.handleTriggers[handle], -emitters);
+            count(counted, emitters);
+        }
+        this.handleTriggers[handle] = counted;
+    }
+
+    /**
+     * Gets the trigger emitters wearing the handle are counted under, null
+     * for periodic trails.
+     */
+    @Nullable
+    TrailTrigger get(int handle) {
+        return handle >= 0 && handle < this.handleTriggers.length ? this.handleTriggers[handle] : null;
+    }
+
+    @Nullable
+    private static TrailTrigger counted(TrailTrigger trigger) {
+        return trigger == TrailTrigger.PERIODIC ? null : trigger;
+    }
+
+    private void count(@Nullable TrailTrigger trigger, int delta) {
+        if (trigger != null) {
+            this.counts[trigger.ordinal()] += delta;
+            if (trigger.isMovement()) {
+                this.movementCount += delta;
+            }
+        }
+    }
+
+    boolean isEmpty(TrailTrigger trigger) {
+        return this.counts[trigger.ordinal()] == 0;
+    }
+
+    boolean hasMovementTriggers() {
+        return this.movementCount > 0;
+    }
+
+    void clear() {
+        Arrays.fill(this.counts, 0);
+        Arrays.fill(this.handleEmitters, 0);
+        Arrays.fill(this.handleTriggers, null);
+        this.movementCount = 0;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves the players that would receive a trail emission through the
+ * {@link SpatialIndex}, so emissions nobody can see are culled before any
+ * particles are spawned. The resolved viewers are kept in a reused buffer
+ * that is valid until the next call to {@link #resolve}.
+ */
+final class ViewerResolver {
+
+    private final SpatialIndex index;
+    private final VisibilityFilter visibility;
+    private final List<PlayerWrapper> viewers = new ArrayList<>();
+
+    ViewerResolver(SpatialIndex index, VisibilityFilter visibility) {
+        this.index = index;
+        this.visibility = visibility;
+    }
+
+    /**
+     * Collects every session within {@code radius} of the emission position
+     * that wants to see the emitter's trail, and returns how many of them are
+     * not the emitter.
+     */
+    int resolve(PlayerWrapper emitter, double x, double y, double z, int radius) {
+        if (emitter.gridWorld == null) {
+            this.viewers.clear();
+            return 0;
+        }
+        final List<PlayerWrapper> viewers = this.viewers;
+        final int size = this.index.collectNearby(emitter.gridWorld, x, y, z, radius, viewers);
+        if (!this.visibility.isFiltering()) {
+            return size - countEmitter(emitter, x, y, z, radius);
+        }
+        int kept = 0;
+        boolean emitterKept = false;
+        for (int i = 0; i < size; i++) {
+            final PlayerWrapper viewer = viewers.get(i);
+            if (TrailVisibility.canSee(viewer, emitter)) {
+                viewers.set(kept++, viewer);
+                emitterKept |= viewer == emitter;
+            }
+        }
+        // Dropping from the end keeps the buffer from shifting
+        for (int i = size - 1; i >= kept; i--) {
+            viewers.remove(i);
+        }
+        return emitterKept ? kept - 1 : kept;
+    }
+
+    /**
+     * Counts the emitter if it was collected as well, it is only missing when
+     * the trail is emitted away from it, such as at the entity it hit.
+     */
+    private static int countEmitter(PlayerWrapper emitter, double x, double y, double z, double radius) {
+        final double dx = emitter.x - x;
+        final double dy = emitter.y - y;
+        final double dz = emitter.z - z;
+        return dx * dx + dy * dy + dz * dz <= radius * radius ? 1 : 0;
+    }
+
+    List<PlayerWrapper> getViewers() {
+        return this.viewers;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of HappyTrails, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Gabriel Harris-Rouquette <https://gabizou.com/>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.gabizou.happytrails;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+import org.spongepowered.api.data.key.Keys;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.gamemode.GameModes;
+import org.spongepowered.api.scoreboard.Team;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link TrailVisibility} preferences of players and the state the
+ * viewer selection filters on. Every session carries its preference, a
+ * bitset over session slots of the players whose trails it sees as friends,
+ * and whether it is hidden because it is vanished or spectating, so the
+ * filter never has to look anything up per emission. Hidden players that
+ * wear a trail are also flagged in the {@link EmitterTable}.
+ *
+ * <p>Teams and vanish have no events to follow, so they are refreshed once a
+ * second. Preferences other than {@link TrailVisibility#ALL} are saved next
+ * to the config.</p>
+ */
+final class VisibilityFilter {
+
+    private final HoconConfigurationLoader loader;
+    private final EmitterTable emitters;
+    private final Map<UUID, TrailVisibility> preferences = new ConcurrentHashMap<>();
+    // Online sessions that don't see every trail, while zero the filter is skipped
+    private int restricted;
+
+    VisibilityFilter(Path file, EmitterTable emitters) {
+        this.loader = HoconConfigurationLoader.builder().setPath(file).build();
+        this.emitters = emitters;
+    }
+
+    void load() throws IOException {
+        final ConfigurationNode root = this.loader.load();
+        for (Map.Entry<Object, ? extends ConfigurationNode> entry : root.getNode("players").getChildrenMap().entrySet()) {
+            try {
+                final TrailVisibility visibility = TrailVisibility.valueOf(entry.getValue().getString(TrailVisibility.ALL.name()));
+                if (visibility != TrailVisibility.ALL) {
+                    this.preferences.put(UUID.fromString(entry.getKey().toString()), visibility);
+                }
+            } catch (IllegalArgumentException e) {
+                HappyTrails.getInstance().logger.warn("Skipping invalid trail visibility of " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Saves the preferences, safe to call from any thread.
+     */
+    synchronized void save() throws IOException {
+        final ConfigurationNode root = this.loader.createEmptyNode();
+        final Map<String, String> players = new HashMap<>();
+        this.preferences.forEach((playerId, visibility) -> players.put(playerId.toString(), visibility.name()));
+        root.getNode("players").setValue(players);
+        this.loader.save(root);
+    }
+
+    TrailVisibility get(UUID playerId) {
+        return this.preferences.getOrDefault(playerId, TrailVisibility.ALL);
+    }
+
+    void set(PlayerWrapper session, TrailVisibility visibility, Collection<PlayerWrapper> sessions) {
+        if (visibility == TrailVisibility.ALL) {
+            this.preferences.remove(session.playerId);
+        } else {
+            this.preferences.put(session.playerId, visibility);
+        }
+        apply(session, visibility);
+        if (visibility == TrailVisibility.FRIENDS) {
+            refreshFriends(session, sessions);
+        }
+    }
+
+    private void apply(PlayerWrapper session, TrailVisibility visibility) {
+        if (session.visibility != TrailVisibility.ALL) {
+            this.restricted--;
+        }
+        if (visibility != TrailVisibility.ALL) {
+            this.restricted++;
+        }
+        session.visibility = visibility;
+        if (visibility != TrailVisibility.FRIENDS) {
+            session.friends.clear();
+        }
+    }
+
+    boolean isFiltering() {
+        return this.restricted > 0;
+    }
+
+    void reset() {
+        this.restricted = 0;
+    }
+
+    void join(PlayerWrapper session, Player player) {
+        apply(session, get(session.playerId));
+        refreshPlayer(session, player);
+    }
+
+    void quit(PlayerWrapper session, Collection<PlayerWrapper> sessions) {
+        apply(session, TrailVisibility.ALL);
+        // The slot is handed to the next player that joins
+        for (PlayerWrapper other : sessions) {
+            other.friends.clear(session.slot);
+        }
+    }
+
+    /**
+     * Refreshes whether every session is hidden and which players the
+     * sessions that only see friends consider friends.
+     */
+    void refresh(Collection<PlayerWrapper> sessions) {
+        for (PlayerWrapper session : sessions) {
+            final Player player = session.getPlayer();
+            if (player != null) {
+                refreshPlayer(session, player);
+            }
+        }
+        for (PlayerWrapper session : sessions) {
+            if (session.visibility == TrailVisibility.FRIENDS) {
+                refreshFriends(session, sessions);
+            }
+        }
+    }
+
+    void refreshPlayer(PlayerWrapper session, Player player) {
+        setHidden(session, player.get(Keys.VANISH).orElse(false)
+                           || player.get(Keys.GAME_MODE).orElse(GameModes.SURVIVAL) == GameModes.SPECTATOR);
+        session.team = player.getScoreboard().getMemberTeam(player.getTeamRepresentation()).orElse(null);
+    }
+
+    void setHidden(PlayerWrapper session, boolean hidden) {
+        session.hidden = hidden;
+        if (session.emitterSlot != EmitterTable.NONE) {
+            this.emitters.setFlag(session.emitterSlot, EmitterTable.HIDDEN, hidden);
+        }
+    }
+
+    private static void refreshFriends(PlayerWrapper viewer, Collection<PlayerWrapper> sessions) {
+        viewer.friends.clear();
+        final Team team = viewer.team;
+        if (team == null) {
+            return;
+        }
+        for (PlayerWrapper other : sessions) {
+            if (other.team == team) {
+                viewer.friends.set(other.slot);
+            }
+        }
+    }
+}